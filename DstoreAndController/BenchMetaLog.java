@@ -0,0 +1,122 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Metadata log overhead per operation, STORE_COMPLETE records appended by
+ * concurrent clients and waited on until logged, against forcing the file
+ * once for each record as an unbatched log would.
+ * 
+ * Usage: java BenchMetaLog dir [records] [threads...]
+ */
+@SuppressWarnings("auxiliaryclass")
+public class BenchMetaLog {
+
+    /**
+     * Empty dir, creating it if missing.
+     * 
+     * @param dir
+     */
+    private static void clear(File dir) {
+        dir.mkdirs();
+        for (File file: dir.listFiles()) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Record as logged for a STORE_COMPLETE.
+     * 
+     * @param thread
+     * @param i
+     * @return
+     */
+    private static String getRecord(int thread, int i) {
+        return "C file" + thread + "_" + i + " 1048576 1234567890 0";
+    }
+
+    /**
+     * Append records split over threads, each waiting for its record to be
+     * logged before the next.
+     * 
+     * @param dir
+     * @param records
+     * @param threads
+     * @return ns per record
+     * @throws Exception
+     */
+    private static double runLog(File dir, int records, int threads) throws Exception {
+        clear(dir);
+        MetaLog metaLog = new MetaLog(dir.getPath(), Long.MAX_VALUE, ArrayList::new);
+        metaLog.recover(record -> { });
+        int each = records / threads;
+        ArrayList<Thread> clients = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            clients.add(Threads.start(() -> {
+                for (int i = 0; i < each; i++) {
+                    metaLog.append(getRecord(thread, i)).join();
+                }
+            }));
+        }
+        for (Thread client: clients) {
+            client.join();
+        }
+        return (double) (System.nanoTime() - start) / (each * threads);
+    }
+
+    /**
+     * Write records forcing the file after each.
+     * 
+     * @param dir
+     * @param records
+     * @return ns per record
+     * @throws IOException
+     */
+    private static double runForceEach(File dir, int records) throws IOException {
+        clear(dir);
+        try (FileChannel channel = FileChannel.open(new File(dir, "log").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < records; i++) {
+                ByteBuffer buffer = ByteBuffer.wrap((getRecord(0, i) + "\n").getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            return (double) (System.nanoTime() - start) / records;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java BenchMetaLog dir [records] [threads...]");
+            return;
+        }
+        File dir = new File(args[0]);
+        int records = args.length > 1 ? Integer.valueOf(args[1]) : 4000;
+        ArrayList<Integer> threadCounts = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            threadCounts.add(Integer.valueOf(args[i]));
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts.add(1);
+            threadCounts.add(8);
+            threadCounts.add(64);
+        }
+        // Warm up.
+        runForceEach(dir, records / 4);
+        runLog(dir, records / 4, 1);
+        System.out.printf("force each record: %.1f us/op%n", runForceEach(dir, records) / 1000);
+        for (int threads: threadCounts) {
+            System.out.printf("log, %d threads: %.1f us/op%n", threads, runLog(dir, records, threads) / 1000);
+        }
+        clear(dir);
+        dir.delete();
+    }
+}
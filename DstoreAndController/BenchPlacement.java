@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Placement microbenchmark, choosing the R least loaded of N dstores per
+ * STORE by sorting all of them, as before the placement index, against
+ * selecting from the index and re-keying the chosen ones.
+ * 
+ * Usage: java BenchPlacement [R] [stores] [N...]
+ */
+@SuppressWarnings("auxiliaryclass")
+public class BenchPlacement {
+    private static final long FILE_SIZE = 1024 * 1024;
+    private static final int ROUNDS = 2;
+
+    /**
+     * Run STOREs on two clusters of N dstores with the same random stored
+     * bytes, one placed by sorting all dstores and one from the index.
+     * 
+     * @param n
+     * @param r
+     * @param stores
+     * @return ns per STORE sorting, then ns per STORE from the index
+     */
+    private static double[] run(int n, int r, int stores) {
+        ArrayList<DstoreMeta> dstores = new ArrayList<>();
+        PlacementIndex placementIndex = new PlacementIndex();
+        Random random = new Random(n);
+        for (int i = 0; i < n; i++) {
+            DstoreMeta sorted = new DstoreMeta(i, null, null);
+            DstoreMeta indexed = new DstoreMeta(i, null, null);
+            for (int f = random.nextInt(50); f > 0; f--) {
+                sorted.addFileMeta(new FileMeta("seed" + i + "_" + f, FILE_SIZE));
+                indexed.addFileMeta(new FileMeta("seed" + i + "_" + f, FILE_SIZE));
+            }
+            dstores.add(sorted);
+            placementIndex.add(indexed);
+        }
+        double[] result = new double[2];
+        // First round warms up.
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < stores; i++) {
+                ArrayList<DstoreMeta> sorted = new ArrayList<>(dstores);
+                sorted.sort(Comparator.comparingLong(DstoreMeta::getStoredBytes));
+                for (DstoreMeta dstoreMeta: sorted.subList(0, r)) {
+                    dstoreMeta.addFileMeta(new FileMeta("store" + round + "_" + i, FILE_SIZE));
+                }
+            }
+            result[0] = (double) (System.nanoTime() - start) / stores;
+            start = System.nanoTime();
+            for (int i = 0; i < stores; i++) {
+                for (DstoreMeta dstoreMeta: placementIndex.selectLeast(r, FILE_SIZE, 0)) {
+                    dstoreMeta.addFileMeta(new FileMeta("store" + round + "_" + i, FILE_SIZE));
+                }
+            }
+            result[1] = (double) (System.nanoTime() - start) / stores;
+        }
+        return result;
+    }
+
+    public static void main(String[] args) {
+        int r = args.length > 0 ? Integer.valueOf(args[0]) : 3;
+        int stores = args.length > 1 ? Integer.valueOf(args[1]) : 10000;
+        ArrayList<Integer> sizes = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            sizes.add(Integer.valueOf(args[i]));
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(1000);
+            sizes.add(10000);
+        }
+        for (int n: sizes) {
+            double[] result = run(n, r, stores);
+            System.out.printf("N=%d R=%d: sort %.1f us/STORE, index %.2f us/STORE, %.0fx%n", n, r, result[0] / 1000, result[1] / 1000, result[0] / result[1]);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Reed-Solomon throughput, encoding the parity of rows of full blocks, and
+ * decoding the first m data shards back from the other k shards as a LOAD
+ * missing m Dstores would. Decoded blocks are checked against the data.
+ * 
+ * Usage: java BenchReedSolomon [k] [m] [MB]
+ */
+public class BenchReedSolomon {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int k = args.length > 0 ? Integer.valueOf(args[0]) : 4;
+        int m = args.length > 1 ? Integer.valueOf(args[1]) : 2;
+        int megabytes = args.length > 2 ? Integer.valueOf(args[2]) : 256;
+        if (m > k) {
+            System.err.println("Need m <= k to lose m data shards.");
+            return;
+        }
+        ReedSolomon reedSolomon = new ReedSolomon(k, m);
+        int blockSize = ReedSolomon.MAX_BLOCK_SIZE;
+        long rows = Math.max(1, ((long) megabytes << 20) / ((long) k * blockSize));
+        Random random = new Random(k * 31 + m);
+        byte[][] data = new byte[k][blockSize];
+        for (byte[] block: data) {
+            random.nextBytes(block);
+        }
+        byte[][] parity = new byte[m][blockSize];
+        // Shards m .. k + m - 1 survive, data shards 0 .. m - 1 are lost.
+        int[] sources = new int[k];
+        byte[][] inputs = new byte[k][];
+        for (int i = 0; i < k; i++) {
+            sources[i] = m + i;
+            inputs[i] = m + i < k ? data[m + i] : parity[m + i - k];
+        }
+        byte[][] decoded = new byte[m][blockSize];
+        double bytes = (double) rows * k * blockSize;
+        double encode = 0;
+        double decode = 0;
+        // Earlier rounds warm up.
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (long row = 0; row < rows; row++) {
+                reedSolomon.encode(data, parity, blockSize);
+            }
+            encode = bytes / (System.nanoTime() - start) * 1e9 / (1 << 20);
+            start = System.nanoTime();
+            byte[][] coefficients = new byte[m][];
+            for (int j = 0; j < m; j++) {
+                coefficients[j] = reedSolomon.coefficients(sources, j);
+            }
+            for (long row = 0; row < rows; row++) {
+                for (int j = 0; j < m; j++) {
+                    ReedSolomon.combine(coefficients[j], inputs, decoded[j], blockSize);
+                }
+            }
+            decode = bytes / (System.nanoTime() - start) * 1e9 / (1 << 20);
+            for (int j = 0; j < m; j++) {
+                if (!Arrays.equals(decoded[j], data[j])) {
+                    System.err.println("Decoded shard " + j + " differs from the data.");
+                    return;
+                }
+            }
+        }
+        System.out.printf("k=%d m=%d, %d MB in %d KB blocks: encode %.0f MB/s, decode %d lost %.0f MB/s%n", k, m, (long) (bytes / (1 << 20)), blockSize >> 10, encode, m, decode);
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * Per-connection thread cost, holding N idle sessions on a local server
+ * whose handlers start through Threads as the Controller's and Dstore's do,
+ * then timing one round trip on each. Run once with platform and once with
+ * virtual threads to compare.
+ * 
+ * Usage: java BenchThreads [platform|virtual] [sessions]
+ */
+public class BenchThreads {
+
+    /**
+     * Echo lines until the client closes.
+     * 
+     * @param socket
+     */
+    private static void handle(Socket socket) {
+        try (Socket client = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                PrintWriter out = new PrintWriter(client.getOutputStream(), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.println(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get used heap after a collection.
+     * 
+     * @return bytes
+     */
+    private static long getUsedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "platform";
+        int sessions = args.length > 1 ? Integer.valueOf(args[1]) : 2000;
+        if (mode.equals("virtual") && !Threads.useVirtual()) {
+            System.out.println("virtual: unavailable on Java " + System.getProperty("java.version") + ", not run.");
+            return;
+        }
+        ServerSocket serverSocket = new ServerSocket(0, sessions, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Threads.start(() -> handle(socket));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        long heap = getUsedHeap();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        ArrayList<Socket> clients = new ArrayList<>();
+        ArrayList<BufferedReader> readers = new ArrayList<>();
+        ArrayList<PrintWriter> writers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+            clients.add(socket);
+            readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream())));
+            writers.add(new PrintWriter(socket.getOutputStream(), true));
+        }
+        double open = (double) (System.nanoTime() - start) / sessions;
+        start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            writers.get(i).println("LIST");
+            if (!"LIST".equals(readers.get(i).readLine())) {
+                System.err.println("Session " + i + " got a wrong reply.");
+                return;
+            }
+        }
+        double roundTrip = (double) (System.nanoTime() - start) / sessions;
+        long heapUsed = getUsedHeap() - heap;
+        int threadsUsed = ManagementFactory.getThreadMXBean().getThreadCount() - threads;
+        System.out.printf("%s, %d sessions: open %.1f us, round trip %.1f us, +%d KB heap, +%d platform threads%n",
+                Threads.isVirtual() ? "virtual" : "platform", sessions, open / 1000, roundTrip / 1000, heapUsed >> 10, threadsUsed);
+        for (Socket socket: clients) {
+            socket.close();
+        }
+        serverSocket.close();
+        System.exit(0);
+    }
+}
@@ -1,27 +1,66 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Random;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
- * Client thread.
+ * Client thread. The NIO engine also uses it without starting the thread,
+ * feeding it framed lines through handleCommand.
  */
 class ClientThread extends Thread {
 
     private Socket socket;
+    private int port;
     private Controller controller;
     private BufferedReader input;
     private PrintWriter output;
+    private DstoreMeta dstoreMeta;
     private HashMap<String, ArrayList<Integer> > reloadDstore;
 
     /**
@@ -32,10 +71,25 @@ class ClientThread extends Thread {
      */
     public ClientThread(Socket socket, Controller controller) {
         this.socket = socket;
+        this.port = socket.getPort();
         this.controller = controller;
         this.reloadDstore = new HashMap<>();
     }
 
+    /**
+     * Constructor for a connection owned by the NIO engine.
+     * 
+     * @param port remote port of the connection
+     * @param output
+     * @param controller
+     */
+    public ClientThread(int port, PrintWriter output, Controller controller) {
+        this.socket = null;
+        this.port = port;
+        this.output = output;
+        this.controller = controller;
+        this.reloadDstore = new HashMap<>();
+    }
     
     /**
      * Run thread.
@@ -50,27 +104,65 @@ class ClientThread extends Thread {
                 if (command == null) {
                     input.close();
                     output.close();
+                    handleDisconnect();
                     return;
                 }
-                String token = command.split(" ")[0];
-                System.out.println(command);
-                if (token.equals(Protocol.LIST_TOKEN)) {
-                    handleList();
-                } else if (token.equals(Protocol.STORE_TOKEN)) {
-                    handleStore(command);
-                } else if (token.equals(Protocol.STORE_ACK_TOKEN)) {
-                    handleStoreAck(command);
-                } else if (token.equals(Protocol.LOAD_TOKEN)) {
-                    handleLoad(command, false);
-                } else if (token.equals(Protocol.RELOAD_TOKEN)) {
-                    handleLoad(command, true);
-                } else if (token.equals(Protocol.REMOVE_TOKEN)) {
-                    handleRemove(command);
-                } else if (token.equals(Protocol.JOIN_TOKEN)) {
-                    handleJoin(command);
-                } else if (token.equals(Protocol.REMOVE_ACK_TOKEN) || token.equals(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN)) {
-                    handleRemoveAck(command);
-                }
+                handleCommand(command);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            handleDisconnect();
+        }
+    }
+
+    /**
+     * Handle connection closed. Requests still waiting on a dstore's
+     * connection fail at once instead of running into the deadline.
+     */
+    public void handleDisconnect() {
+        if (dstoreMeta != null) {
+            dstoreMeta.failReplies();
+            controller.endAdvertise(dstoreMeta.getPort());
+        }
+    }
+
+    /**
+     * Handle one command line.
+     * 
+     * @param command
+     */
+    public void handleCommand(String command) {
+        try {
+            String token = command.split(" ")[0];
+            System.out.println(command);
+            if (dstoreMeta != null && token.equals(Protocol.REPLY_TOKEN)) {
+                dstoreMeta.completeReply(command);
+            } else if (dstoreMeta != null && token.equals(Protocol.SPACE_TOKEN)) {
+                handleSpace(command);
+            } else if (dstoreMeta != null && token.equals(Protocol.SHARDS_LOST_TOKEN)) {
+                handleShardsLost(command);
+            } else if (dstoreMeta != null && token.equals(Protocol.ADVERTISE_TOKEN)) {
+                handleAdvertise(command);
+            } else if (token.equals(Protocol.LIST_TOKEN)) {
+                handleList();
+            } else if (token.equals(Protocol.LIST_PAGE_TOKEN)) {
+                handleListPage(command);
+            } else if (token.equals(Protocol.STORE_TOKEN)) {
+                handleStore(command);
+            } else if (token.equals(Protocol.STORE_ACK_TOKEN)) {
+                handleStoreAck(command);
+            } else if (token.equals(Protocol.LOAD_TOKEN)) {
+                handleLoad(command, false);
+            } else if (token.equals(Protocol.RELOAD_TOKEN)) {
+                handleLoad(command, true);
+            } else if (token.equals(Protocol.LOAD_REPLICAS_TOKEN)) {
+                handleLoadReplicas(command);
+            } else if (token.equals(Protocol.REMOVE_TOKEN)) {
+                handleRemove(command);
+            } else if (token.equals(Protocol.JOIN_TOKEN)) {
+                handleJoin(command);
+            } else if (token.equals(Protocol.REMOVE_ACK_TOKEN) || token.equals(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN)) {
+                handleRemoveAck(command);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -81,16 +173,29 @@ class ClientThread extends Thread {
      * Handle command LIST.
      */
     private void handleList() {
-        StringBuffer stringBuffer = new StringBuffer();
         if (!controller.hasEnoughDstoreMeta()) {
-            stringBuffer.append(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            output.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
         } else {
-            String filename = controller.getAllFilename();
-            stringBuffer.append(Protocol.LIST_TOKEN);
-            stringBuffer.append(" ");
-            stringBuffer.append(filename);
+            output.println(controller.getListResponse());
+        }
+        output.flush();
+    }
+
+    /**
+     * Handle command LIST_PAGE.
+     * 
+     * @param command
+     */
+    private void handleListPage(String command) {
+        ListPage listPage = ListPage.parse(command);
+        if (listPage == null) {
+            return;
+        }
+        if (!controller.hasEnoughDstoreMeta()) {
+            output.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+        } else {
+            output.println(controller.getListPage(listPage));
         }
-        output.println(stringBuffer.toString());
         output.flush();
     }
 
@@ -102,11 +207,12 @@ class ClientThread extends Thread {
     private void handleStore(String command) {
         StringBuffer stringBuffer = new StringBuffer();
         String[] tokens = command.split(" ");
-        if (tokens.length != 3) {
+        if (tokens.length != 3 && tokens.length != 4) {
             return;
         }
         String filename = tokens[1];
-        int filesize = Integer.valueOf(tokens[2]);
+        long filesize = Long.valueOf(tokens[2]);
+        String digest = tokens.length == 4 ? tokens[3] : null;
         if (filesize < 0) {
             return;
         }
@@ -117,31 +223,148 @@ class ClientThread extends Thread {
         } else {
             FileMeta fileMeta = new FileMeta(filename, filesize);
             fileMeta.setPrintWriter(output);
+            List<DstoreMeta> holders = null;
             if (controller.addFileMeta(fileMeta) == false) {
                 stringBuffer.append(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+            } else if (digest != null && controller.isTrustDigests() && (holders = controller.getDigestHolders(fileMeta, digest)) != null) {
+                storeLinked(fileMeta, digest, holders);
+                return;
             } else {
-                stringBuffer.append(Protocol.STORE_TO_TOKEN);
-                stringBuffer.append(" ");
-                stringBuffer.append(controller.getDstoreMetaPorts());
+                String ports = fileMeta.isErasure() ? controller.getShardPorts(fileMeta)
+                        : fileMeta.isStriped() ? controller.getStripePorts(fileMeta) : controller.getDstoreMetaPorts(fileMeta);
+                if (ports == null) {
+                    // Not enough dstores with room for the file.
+                    controller.cancelFileMeta(fileMeta);
+                    stringBuffer.append(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                } else if (fileMeta.isErasure()) {
+                    storeEncoded(fileMeta, ports);
+                    return;
+                } else if (controller.isChained() && !fileMeta.isStriped() && ports.contains(" ")) {
+                    storeChained(filename, filesize, ports);
+                    return;
+                } else {
+                    stringBuffer.append(fileMeta.isStriped() ? Protocol.STORE_TO_STRIPED_TOKEN : Protocol.STORE_TO_TOKEN);
+                    stringBuffer.append(" ");
+                    stringBuffer.append(ports);
+                }
             }
         }
         output.println(stringBuffer.toString());
         output.flush();
     }
 
+    /**
+     * Reply STORE_TO naming only the head of the chain once the head has the
+     * rest of it, so the client uploads the file once and each dstore
+     * forwards it to the next. If the head does not answer in time the
+     * client stores to every dstore as usual, once the head dropped the
+     * chain, so it cannot forward the client's upload as well. The CHAIN_ACK
+     * and the CHAIN_CANCEL after it share one timeout, the head taking no
+     * CHAIN past half of it.
+     * 
+     * @param filename
+     * @param filesize
+     * @param ports
+     */
+    private void storeChained(String filename, long filesize, String ports) {
+        int split = ports.indexOf(' ');
+        DstoreMeta head = controller.getDStoreMeta(Integer.valueOf(ports.substring(0, split)));
+        long start = System.currentTimeMillis();
+        long deadline = start + controller.getTimeout() / 2;
+        long end = start + controller.getTimeout();
+        String request = Protocol.CHAIN_TOKEN + " " + filename + " " + filesize + " " + deadline + ports.substring(split);
+        CompletableFuture<String> reply = head == null ? CompletableFuture.completedFuture(null) : head.request(request);
+        reply.completeOnTimeout(null, deadline - start, TimeUnit.MILLISECONDS).exceptionally(e -> null).thenCompose(ack -> {
+            if (ack != null || head == null) {
+                return CompletableFuture.completedFuture(ack);
+            }
+            // The ack may just be late, the head answers the cancel after any CHAIN it took by the deadline.
+            long left = Math.max(0, end - System.currentTimeMillis());
+            return head.request(Protocol.CHAIN_CANCEL_TOKEN + " " + filename).completeOnTimeout(null, left, TimeUnit.MILLISECONDS)
+                    .exceptionally(e -> null).thenApply(cancel -> null);
+        }).thenAccept(ack -> {
+            boolean chained = (Protocol.CHAIN_ACK_TOKEN + " " + filename).equals(ack);
+            output.println(Protocol.STORE_TO_TOKEN + " " + (chained ? ports.substring(0, split) : ports));
+            output.flush();
+        });
+    }
+
+    /**
+     * Store a file whose content R dstores already hold under another name
+     * by linking it there, with no transfer. The client is told
+     * STORE_COMPLETE once every link is acked, else it is sent STORE_TO
+     * naming only dstores for the replicas not linked, and uploads as usual.
+     * 
+     * @param fileMeta
+     * @param digest
+     * @param holders
+     */
+    private void storeLinked(FileMeta fileMeta, String digest, List<DstoreMeta> holders) {
+        String request = Protocol.LINK_TOKEN + " " + fileMeta.getFilename() + " " + fileMeta.getFilesize() + " " + digest;
+        CompletableFuture<?>[] links = new CompletableFuture<?>[holders.size()];
+        for (int i = 0; i < holders.size(); i++) {
+            DstoreMeta dstoreMeta = holders.get(i);
+            links[i] = dstoreMeta.request(request).completeOnTimeout(null, controller.getTimeout(), TimeUnit.MILLISECONDS).exceptionally(e -> null).thenAccept(ack -> {
+                String[] tokens = ack == null ? new String[0] : ack.split(" ");
+                if (tokens.length == 3 && tokens[0].equals(Protocol.LINK_ACK_TOKEN) && tokens[1].equals(fileMeta.getFilename())) {
+                    controller.setStoreFinished(dstoreMeta.getPort(), fileMeta.getFilename(), Long.valueOf(tokens[2]), digest);
+                }
+            });
+        }
+        CompletableFuture.allOf(links).thenRun(() -> {
+            if (fileMeta.getStatus() != Status.STORE_IN_PROGRESS) {
+                return;
+            }
+            String ports = controller.getDstoreMetaPorts(fileMeta);
+            if (ports == null) {
+                controller.cancelFileMeta(fileMeta);
+                output.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            } else {
+                output.println(Protocol.STORE_TO_TOKEN + " " + ports);
+            }
+            output.flush();
+        });
+    }
+
+    /**
+     * Reply STORE_TO naming the dstore of the first shard once it has the
+     * shard layout. It encodes the client's upload and streams each shard to
+     * its dstore, which acks the shard as a file of its own.
+     * 
+     * @param fileMeta
+     * @param ports
+     */
+    private void storeEncoded(FileMeta fileMeta, String ports) {
+        String head = ports.split(" ")[0];
+        DstoreMeta dstoreMeta = controller.getDStoreMeta(Integer.valueOf(head));
+        String request = Protocol.SHARDS_TOKEN + " " + fileMeta.getFilename() + " " + fileMeta.getFilesize() + " " + fileMeta.getDataShards() + " "
+                + fileMeta.getParityShards() + " " + ports;
+        CompletableFuture<String> reply = dstoreMeta == null ? CompletableFuture.completedFuture(null) : dstoreMeta.request(request);
+        reply.completeOnTimeout(null, controller.getTimeout(), TimeUnit.MILLISECONDS).exceptionally(e -> null).thenAccept(ack -> {
+            if ((Protocol.SHARDS_ACK_TOKEN + " " + fileMeta.getFilename()).equals(ack)) {
+                output.println(Protocol.STORE_TO_TOKEN + " " + head);
+            } else {
+                controller.cancelFileMeta(fileMeta);
+                output.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            }
+            output.flush();
+        });
+    }
+
     /**
      * Handle command STORE_ACK.
      */
     private void handleStoreAck(String command) {
         String[] tokens = command.split(" ");
-        if (tokens.length != 2) {
+        if (tokens.length < 2 || tokens.length > 4) {
             return;
         }
         String filename = tokens[1];
-        int port = socket.getPort();
+        long checksum = tokens.length >= 3 ? Long.valueOf(tokens[2]) : -1;
+        String digest = tokens.length == 4 ? tokens[3] : null;
         int dport = controller.getPortMap(port);
         if (dport != 0) {
-            controller.setStoreFinished(dport, filename);
+            controller.setStoreFinished(dport, filename, checksum, digest);
         }
     }
 
@@ -161,23 +384,23 @@ class ClientThread extends Thread {
             stringBuffer.append(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
         } else {
             FileMeta fileMeta = controller.getFileMeta(filename);
-            if (fileMeta == null || fileMeta.getDStoreMeta().size() == 0) {
+            if (fileMeta != null && fileMeta.isErasure()) {
+                loadEncoded(fileMeta, reload);
+                return;
+            } else if (fileMeta != null && fileMeta.isStriped()) {
+                appendStripeMap(stringBuffer, fileMeta, reload);
+            } else if (fileMeta == null || fileMeta.getDStoreMeta().size() == 0) {
                 stringBuffer.append(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
             } else {
-                int port = fileMeta.getDStoreMeta().get(0).getPort();
-                if (reload) {
-                    port = -1;
-                    for (int i = 1; i < fileMeta.getDStoreMeta().size(); i++) {
-                        int tempPort = fileMeta.getDStoreMeta().get(i).getPort();
-                        if (!reloadDstore.containsKey(filename)) {
-                            reloadDstore.put(filename, new ArrayList<>());
-                        }
-                        if (!reloadDstore.get(filename).contains(tempPort)) {
-                            port = tempPort;
-                            reloadDstore.get(filename).add(tempPort);
-                            break;
-                        }
-                    }
+                // A LOAD starts over, a RELOAD skips every replica this client already tried.
+                if (!reload || !reloadDstore.containsKey(filename)) {
+                    reloadDstore.put(filename, new ArrayList<>());
+                }
+                DstoreMeta replica = controller.selectReplica(fileMeta, reloadDstore.get(filename));
+                int port = -1;
+                if (replica != null) {
+                    port = replica.getPort();
+                    reloadDstore.get(filename).add(port);
                 }
                 if (port != -1) {
                     stringBuffer.append(Protocol.LOAD_FROM_TOKEN);
@@ -194,6 +417,100 @@ class ClientThread extends Thread {
         output.flush();
     }
 
+    /**
+     * Reply LOAD_FROM naming a dstore holding a shard, once it has the shard
+     * layout. It fetches k shards and decodes the file, so the client loads
+     * it like any other. A RELOAD, or a dstore not taking the layout, picks
+     * a dstore not tried yet.
+     * 
+     * @param fileMeta
+     * @param reload
+     */
+    private void loadEncoded(FileMeta fileMeta, boolean reload) {
+        String filename = fileMeta.getFilename();
+        if (!reload || !reloadDstore.containsKey(filename)) {
+            reloadDstore.put(filename, new ArrayList<>());
+        }
+        String layout = fileMeta.getStatus() == Status.STORE_COMPLETE ? controller.getShardLayout(fileMeta) : null;
+        DstoreMeta decoder = layout == null ? null : controller.selectReplica(controller.getShardHolders(fileMeta), reloadDstore.get(filename));
+        if (decoder == null) {
+            output.println(layout == null && fileMeta.getStatus() != Status.STORE_COMPLETE ? Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN : Protocol.ERROR_LOAD_TOKEN);
+            output.flush();
+            return;
+        }
+        reloadDstore.get(filename).add(decoder.getPort());
+        CompletableFuture<String> reply = decoder.request(Protocol.SHARDS_TOKEN + " " + layout);
+        reply.completeOnTimeout(null, controller.getTimeout(), TimeUnit.MILLISECONDS).exceptionally(e -> null).thenAccept(ack -> {
+            if ((Protocol.SHARDS_ACK_TOKEN + " " + filename).equals(ack)) {
+                output.println(Protocol.LOAD_FROM_TOKEN + " " + decoder.getPort() + " " + fileMeta.getFilesize());
+                output.flush();
+            } else {
+                // The client never heard of this dstore, try the next one for it.
+                loadEncoded(fileMeta, true);
+            }
+        });
+    }
+
+    /**
+     * Handle command LOAD_REPLICAS. The reply names every replica, so a
+     * client can fetch disjoint ranges from all of them at once with
+     * LOAD_DATA_RANGE. Striped files are loaded with LOAD instead.
+     * 
+     * @param command
+     */
+    private void handleLoadReplicas(String command) {
+        StringBuffer stringBuffer = new StringBuffer();
+        String[] tokens = command.split(" ");
+        if (tokens.length != 2) {
+            return;
+        }
+        String filename = tokens[1];
+        FileMeta fileMeta = controller.getFileMeta(filename);
+        if (!controller.hasEnoughDstoreMeta()) {
+            stringBuffer.append(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+        } else if (fileMeta == null || fileMeta.getParent() != null || fileMeta.getStatus() != Status.STORE_COMPLETE) {
+            stringBuffer.append(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+        } else if (fileMeta.isStriped() || fileMeta.isErasure() || fileMeta.getDStoreMeta().size() == 0) {
+            stringBuffer.append(Protocol.ERROR_LOAD_TOKEN);
+        } else {
+            stringBuffer.append(Protocol.LOAD_FROM_REPLICAS_TOKEN);
+            stringBuffer.append(" ");
+            stringBuffer.append(fileMeta.getFilesize());
+            for (DstoreMeta dstoreMeta: fileMeta.getDStoreMeta()) {
+                dstoreMeta.addLoad();
+                stringBuffer.append(" ");
+                stringBuffer.append(dstoreMeta.getPort());
+            }
+        }
+        output.println(stringBuffer.toString());
+        output.flush();
+    }
+
+    /**
+     * Append LOAD_FROM_STRIPED reply, naming one replica per stripe. A client
+     * that fails on a stripe can LOAD or RELOAD that stripe by its own name.
+     * 
+     * @param stringBuffer
+     * @param fileMeta
+     * @param reload
+     */
+    private void appendStripeMap(StringBuffer stringBuffer, FileMeta fileMeta, boolean reload) {
+        String ports = reload ? null : controller.getStripeMap(fileMeta);
+        if (ports == null) {
+            stringBuffer.append(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+        stringBuffer.append(Protocol.LOAD_FROM_STRIPED_TOKEN);
+        stringBuffer.append(" ");
+        stringBuffer.append(fileMeta.getFilesize());
+        stringBuffer.append(" ");
+        stringBuffer.append(fileMeta.getStripeSize());
+        stringBuffer.append(" ");
+        stringBuffer.append(fileMeta.getStripes().size());
+        stringBuffer.append(" ");
+        stringBuffer.append(ports);
+    }
+
     /**
      * Handle command REMOVE.
      * 
@@ -208,31 +525,57 @@ class ClientThread extends Thread {
         String filename = tokens[1];
         if (!controller.hasEnoughDstoreMeta()) {
             stringBuffer.append(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-        } else if (!controller.containsFile(filename)) {
+        } else if (!controller.containsFile(filename) || controller.isStripe(filename)) {
             stringBuffer.append(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
         } else {
             ArrayList<Integer> ports = controller.prepareRemoveFile(filename);
             if (ports == null) {
                 stringBuffer.append(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
             } else {
-                for (Integer port: ports) {
-                    try {
-                        DstoreMeta dstoreMeta = controller.getDStoreMeta(port);
-                        PrintWriter doutput = dstoreMeta.getOutput();
-                        doutput.println(Protocol.REMOVE_TOKEN + " " + filename);
-                        doutput.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                sendRemove(filename, ports);
+                for (String stripe: controller.getStripeNames(filename)) {
+                    ports = controller.prepareRemoveFile(stripe);
+                    if (ports != null) {
+                        sendRemove(stripe, ports);
                     }
                 }
-                controller.finishedRemoveFile(filename);
-                stringBuffer.append(Protocol.REMOVE_COMPLETE_TOKEN);
+                // Reply once the removal is logged, off the log's writer thread.
+                CompletableFuture<Void> logged = controller.finishedRemoveFile(filename);
+                Runnable reply = () -> {
+                    output.println(Protocol.REMOVE_COMPLETE_TOKEN);
+                    output.flush();
+                };
+                if (logged.isDone() && !logged.isCompletedExceptionally()) {
+                    reply.run();
+                } else {
+                    logged.thenRunAsync(reply, Threads::start);
+                }
+                return;
             }
         }
         output.println(stringBuffer.toString());
         output.flush();
     }
 
+    /**
+     * Send REMOVE to dstores.
+     * 
+     * @param filename
+     * @param ports
+     */
+    private void sendRemove(String filename, ArrayList<Integer> ports) {
+        for (Integer port: ports) {
+            try {
+                DstoreMeta dstoreMeta = controller.getDStoreMeta(port);
+                PrintWriter doutput = dstoreMeta.getOutput();
+                doutput.println(Protocol.REMOVE_TOKEN + " " + filename);
+                doutput.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Handle command JOIN.
      * 
@@ -240,17 +583,90 @@ class ClientThread extends Thread {
      */
     private void handleJoin(String command) {
         String[] tokens = command.split(" ");
-        if (tokens.length != 2) {
+        if (tokens.length < 2 || tokens.length == 3 || tokens.length > 5) {
             return;
         }
         int port = Integer.valueOf(tokens[1]);
-        DstoreMeta DstoreMeta = new DstoreMeta(port, input, output);
-        controller.addDstoreMeta(DstoreMeta);
-        controller.addPortMap(socket.getPort(), port);
-        controller.rebalance();
+        dstoreMeta = new DstoreMeta(port, input, output);
+        if (tokens.length >= 4) {
+            dstoreMeta.setFreeBytes(Long.valueOf(tokens[3]));
+        }
+        controller.addDstoreMeta(dstoreMeta);
+        controller.addPortMap(this.port, port);
+        // A restarted dstore advertises its files first, rebalance once they are adopted.
+        if (tokens.length < 5 || Integer.valueOf(tokens[4]) == 0) {
+            // Rebalance elsewhere, its LIST reply comes back through this connection.
+            Threads.start(controller::rebalance);
+            controller.endAdvertise(port);
+        } else {
+            controller.beginAdvertise(port);
+        }
         System.out.println("Port: " + port + " joined.");
     }
 
+    /**
+     * Handle command ADVERTISE, adopting each advertised file that matches a
+     * stored file as a replica with no transfer. Copies of files removed
+     * or replaced while the dstore was away are removed from it.
+     * 
+     * @param command
+     */
+    private void handleAdvertise(String command) {
+        String[] tokens = command.split(" ");
+        if (tokens.length < 2 || (tokens.length - 2) % 3 != 0) {
+            return;
+        }
+        int adopted = 0;
+        for (int i = 2; i < tokens.length; i += 3) {
+            String filename = tokens[i];
+            Boolean adopt = controller.adoptReplica(dstoreMeta, filename, Long.valueOf(tokens[i + 1]), Long.valueOf(tokens[i + 2]));
+            if (adopt == null) {
+                continue;
+            }
+            if (adopt) {
+                adopted++;
+            } else {
+                output.println(Protocol.REMOVE_TOKEN + " " + filename);
+            }
+        }
+        output.flush();
+        System.out.println("Port: " + dstoreMeta.getPort() + " adopted " + adopted + " of " + (tokens.length - 2) / 3 + " advertised files.");
+        if (tokens[1].equals("0")) {
+            Threads.start(controller::rebalance);
+            controller.endAdvertise(dstoreMeta.getPort());
+        }
+    }
+
+    /**
+     * Handle command SPACE.
+     * 
+     * @param command
+     */
+    private void handleSpace(String command) {
+        String[] tokens = command.split(" ");
+        if (tokens.length != 3) {
+            return;
+        }
+        dstoreMeta.setFreeBytes(Long.valueOf(tokens[2]));
+    }
+
+    /**
+     * Handle command SHARDS_LOST.
+     * 
+     * @param command
+     */
+    private void handleShardsLost(String command) {
+        String[] tokens = command.split(" ");
+        if (tokens.length < 3) {
+            return;
+        }
+        ArrayList<Integer> lost = new ArrayList<>();
+        for (int i = 2; i < tokens.length; i++) {
+            lost.add(Integer.valueOf(tokens[i]));
+        }
+        controller.setShardsLost(tokens[1], lost);
+    }
+
     /**
      * Handle command REMOVE_ACK.
      * 
@@ -262,7 +678,6 @@ class ClientThread extends Thread {
             return;
         }
         String filename = tokens[1];
-        int port = socket.getPort();
         int dport = controller.getPortMap(port);
         if (dport != 0) {
             controller.removeFileFromDstore(port, filename);
@@ -271,460 +686,2692 @@ class ClientThread extends Thread {
 }
 
 /**
- * Period thread.
+ * Selector based networking engine. One thread accepts connections and
+ * frames lines, a small worker pool runs the commands, so the number of
+ * connections is not tied to the number of threads.
  */
-class PeriodThread extends Thread {
-    private int period;
+class NioEngine {
     private Controller controller;
+    private int port;
+    private Selector selector;
+    private ExecutorService workers;
+    private ConcurrentLinkedQueue<NioConnection> pendingWrites;
 
     /**
      * Constructor.
      * 
-     * @param period
      * @param controller
+     * @param port
+     * @param workers
      */
-    public PeriodThread(int period, Controller controller) {
-        this.period = period;
+    public NioEngine(Controller controller, int port, int workers) {
         this.controller = controller;
+        this.port = port;
+        this.workers = Executors.newFixedThreadPool(workers);
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
     }
 
     /**
-     * Start thread.
+     * Run the selector loop.
+     * 
+     * @throws IOException
      */
-    @Override
-    public void run() {
+    public void run() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        System.out.println("Controller NIO server listen on port: " + port);
         while (true) {
-            try {
-                Thread.sleep(period);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            selector.select();
+            NioConnection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                connection.enableWrite();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(serverChannel);
+                    continue;
+                }
+                connection = (NioConnection) key.attachment();
+                if (key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
             }
-            controller.rebalance();
         }
     }
-}
-
-/**
- * File status.
- */
-class Status {
-    public final static String STORE_IN_PROGRESS = "store in progress";
-    public final static String STORE_COMPLETE = "store complete";
-    public final static String REMOVE_IN_PROGRESS = "remove in progress";
-    public final static String REMOVE_COMPLETE = "remove complete";
-};
-
-/**
- * File meta.
- */
-class FileMeta {
-    private String filename;
-    private int filesize;
-    private String status;
-    private PrintWriter printWriter;
-    private ArrayList<DstoreMeta> dstoreMeta;
 
     /**
-     * Constructor.
+     * Accept connection.
      * 
-     * @param filename
-     * @param filesize
+     * @param serverChannel
      */
-    public FileMeta(String filename, int filesize) {
-        this.filename = filename;
-        this.filesize = filesize;
-        this.status = Status.STORE_IN_PROGRESS;
-        this.printWriter = null;
-        this.dstoreMeta = new ArrayList<>();
+    private void accept(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new NioConnection(this, channel, key, controller));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Get filename.
+     * Ask the selector thread to start writing a connection's queued output.
      * 
-     * @return
+     * @param connection
      */
-    public String getFilename() {
-        return filename;
+    public void requestWrite(NioConnection connection) {
+        pendingWrites.offer(connection);
+        selector.wakeup();
     }
 
     /**
-     * Get filesize.
+     * Run task on the worker pool.
      * 
-     * @return
+     * @param task
      */
-    public int getFilesize() {
-        return filesize;
+    public void execute(Runnable task) {
+        workers.execute(task);
     }
+}
 
-    /**
-     * Get file status.
-     * 
-     * @return
-     */
-    public String getStatus() {
-        return status;
-    }
+/**
+ * Connection owned by the NIO engine. Lines are handled in arrival order
+ * by at most one worker at a time.
+ */
+class NioConnection {
+    private NioEngine engine;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private ByteArrayOutputStream partialLine;
+    private ConcurrentLinkedQueue<String> lines;
+    private AtomicBoolean scheduled;
+    private ConcurrentLinkedQueue<ByteBuffer> writes;
+    private ClientThread handler;
 
     /**
-     * Set file status.
+     * Constructor.
      * 
-     * @param status
+     * @param engine
+     * @param channel
+     * @param key
+     * @param controller
      */
-    public void setStatus(String status) {
-        this.status = status;
+    public NioConnection(NioEngine engine, SocketChannel channel, SelectionKey key, Controller controller) {
+        this.engine = engine;
+        this.channel = channel;
+        this.key = key;
+        this.readBuffer = ByteBuffer.allocate(8192);
+        this.partialLine = new ByteArrayOutputStream();
+        this.lines = new ConcurrentLinkedQueue<>();
+        this.scheduled = new AtomicBoolean(false);
+        this.writes = new ConcurrentLinkedQueue<>();
+        PrintWriter output = new PrintWriter(new NioOutputStream(this));
+        this.handler = new ClientThread(channel.socket().getPort(), output, controller);
     }
 
     /**
-     * Add dstore meta.
-     * 
-     * @param dstoreMeta
+     * Read available bytes and frame them into lines, on the selector thread.
      */
-    public void addDStoreMeta(DstoreMeta dstoreMeta) {
-        this.dstoreMeta.add(dstoreMeta);
-    }
-
+    public void read() {
+        int count;
+        try {
+            count = channel.read(readBuffer);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if (count < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        boolean framed = false;
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                String line = partialLine.toString();
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                lines.offer(line);
+                partialLine.reset();
+                framed = true;
+            } else {
+                partialLine.write(b);
+            }
+        }
+        readBuffer.clear();
+        if (framed) {
+            schedule();
+        }
+    }
+
+    /**
+     * Schedule a worker to handle queued lines, unless one is already on it.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            engine.execute(this::drain);
+        }
+    }
+
+    /**
+     * Handle queued lines, on a worker thread.
+     */
+    private void drain() {
+        while (true) {
+            String line;
+            while ((line = lines.poll()) != null) {
+                handler.handleCommand(line);
+            }
+            scheduled.set(false);
+            if (lines.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queue bytes for sending, from any thread.
+     * 
+     * @param bytes
+     */
+    public void send(byte[] bytes) {
+        writes.offer(ByteBuffer.wrap(bytes));
+        engine.requestWrite(this);
+    }
+
+    /**
+     * Start watching for writability, on the selector thread.
+     */
+    public void enableWrite() {
+        if (key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Write queued bytes, on the selector thread.
+     */
+    public void write() {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = writes.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                writes.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Close connection.
+     */
+    public void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        handler.handleDisconnect();
+    }
+}
+
+/**
+ * Output stream handing each flushed block to a NIO connection.
+ */
+class NioOutputStream extends OutputStream {
+    private NioConnection connection;
+    private ByteArrayOutputStream buffer;
+
+    /**
+     * Constructor.
+     * 
+     * @param connection
+     */
+    public NioOutputStream(NioConnection connection) {
+        this.connection = connection;
+        this.buffer = new ByteArrayOutputStream();
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        buffer.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        buffer.write(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (buffer.size() > 0) {
+            connection.send(buffer.toByteArray());
+            buffer.reset();
+        }
+    }
+}
+
+/**
+ * Period thread.
+ */
+class PeriodThread extends Thread {
+    private int period;
+    private Controller controller;
+
+    /**
+     * Constructor.
+     * 
+     * @param period
+     * @param controller
+     */
+    public PeriodThread(int period, Controller controller) {
+        this.period = period;
+        this.controller = controller;
+    }
+
+    /**
+     * Start thread.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(period);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            controller.rebalance();
+        }
+    }
+}
+
+/**
+ * File status.
+ */
+enum Status {
+    STORE_IN_PROGRESS,
+    STORE_LOGGING,
+    STORE_COMPLETE,
+    REMOVE_IN_PROGRESS,
+    REMOVE_COMPLETE
+};
+
+/**
+ * File meta.
+ */
+class FileMeta {
+
+    /**
+     * Separator between a striped file's name and its stripe index.
+     */
+    public final static String STRIPE_SEPARATOR = "#";
+
+    private String filename;
+    private long filesize;
+    private AtomicReference<Status> status;
+    private PrintWriter printWriter;
+    private CopyOnWriteArrayList<DstoreMeta> dstoreMeta;
+    private long stripeSize;
+    private ArrayList<FileMeta> stripes;
+    private FileMeta parent;
+    private int dataShards;
+    private int parityShards;
+    private volatile long checksum;
+    private volatile String digest;
+
+    /**
+     * Constructor.
+     * 
+     * @param filename
+     * @param filesize
+     */
+    public FileMeta(String filename, long filesize) {
+        this.filename = filename;
+        this.filesize = filesize;
+        this.checksum = -1;
+        this.status = new AtomicReference<>(Status.STORE_IN_PROGRESS);
+        this.printWriter = null;
+        this.dstoreMeta = new CopyOnWriteArrayList<>();
+        this.stripeSize = 0;
+        this.stripes = new ArrayList<>();
+        this.parent = null;
+    }
+
+    /**
+     * Split file into stripes of stripe size, each stored as its own file.
+     * 
+     * @param stripeSize
+     */
+    public void makeStripes(long stripeSize) {
+        this.stripeSize = stripeSize;
+        this.stripes = new ArrayList<>();
+        for (long offset = 0, i = 0; offset < filesize; offset += stripeSize, i++) {
+            FileMeta stripe = new FileMeta(filename + STRIPE_SEPARATOR + i, Math.min(stripeSize, filesize - offset));
+            stripe.parent = this;
+            stripes.add(stripe);
+        }
+    }
+
+    /**
+     * Erasure code file into k data and m parity shards, kept as its stripes
+     * and each stored once.
+     * 
+     * @param k
+     * @param m
+     */
+    public void makeShards(int k, int m) {
+        this.dataShards = k;
+        this.parityShards = m;
+        this.stripes = new ArrayList<>();
+        for (int i = 0; i < k + m; i++) {
+            FileMeta shard = new FileMeta(ReedSolomon.shardName(filename, i), ReedSolomon.shardSize(filesize, k));
+            shard.parent = this;
+            stripes.add(shard);
+        }
+    }
+
+    /**
+     * Is striped.
+     * 
+     * @return
+     */
+    public boolean isStriped() {
+        return stripeSize > 0;
+    }
+
+    /**
+     * Is erasure coded.
+     * 
+     * @return
+     */
+    public boolean isErasure() {
+        return dataShards > 0;
+    }
+
+    /**
+     * Is shard of an erasure coded file.
+     * 
+     * @return
+     */
+    public boolean isShard() {
+        return parent != null && parent.isErasure();
+    }
+
+    /**
+     * Get data shards, 0 if not erasure coded.
+     * 
+     * @return
+     */
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    /**
+     * Get parity shards.
+     * 
+     * @return
+     */
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /**
+     * Get stripe size.
+     * 
+     * @return
+     */
+    public long getStripeSize() {
+        return stripeSize;
+    }
+
+    /**
+     * Get stripes, or shards of an erasure coded file.
+     * 
+     * @return
+     */
+    public ArrayList<FileMeta> getStripes() {
+        return stripes;
+    }
+
+    /**
+     * Get parent of a stripe, null for a whole file.
+     * 
+     * @return
+     */
+    public FileMeta getParent() {
+        return parent;
+    }
+
+    /**
+     * All stripes stored.
+     * 
+     * @return
+     */
+    public boolean allStripesComplete() {
+        for (FileMeta stripe: stripes) {
+            if (stripe.getStatus() != Status.STORE_COMPLETE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get filename.
+     * 
+     * @return
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Get filesize.
+     * 
+     * @return
+     */
+    public long getFilesize() {
+        return filesize;
+    }
+
+    /**
+     * Get checksum, -1 until a dstore acked with one.
+     * 
+     * @return
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Set checksum.
+     * 
+     * @param checksum
+     */
+    public void setChecksum(long checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Get digest, the SHA-256 of the content in hex.
+     * 
+     * @return null until a deduplicating dstore acked with one
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Set digest.
+     * 
+     * @param digest
+     */
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Get file status.
+     * 
+     * @return
+     */
+    public Status getStatus() {
+        return status.get();
+    }
+
+    /**
+     * Set file status.
+     * 
+     * @param status
+     */
+    public void setStatus(Status status) {
+        this.status.set(status);
+    }
+
+    /**
+     * Change file status only if it is still the expected one.
+     * 
+     * @param expect
+     * @param update
+     * @return
+     */
+    public boolean compareAndSetStatus(Status expect, Status update) {
+        return this.status.compareAndSet(expect, update);
+    }
+
+    /**
+     * Add dstore meta.
+     * 
+     * @param dstoreMeta
+     */
+    public void addDStoreMeta(DstoreMeta dstoreMeta) {
+        this.dstoreMeta.addIfAbsent(dstoreMeta);
+    }
+
+    /**
+     * Remove dstore meta.
+     * 
+     * @param dstoreMeta
+     */
+    public void removeDstoreMeta(DstoreMeta dstoreMeta) {
+        this.dstoreMeta.remove(dstoreMeta);
+    }
+
+    /**
+     * Get dstore meta.
+     * @return
+     */
+    public List<DstoreMeta> getDStoreMeta() {
+        return dstoreMeta;
+    }
+
+    /**
+     * Get r count.
+     * 
+     * @return
+     */
+    public int getRCount() {
+        return dstoreMeta.size();
+    }
+
+    /**
+     * Set print writer.
+     * 
+     * @param printWriter
+     */
+    public void setPrintWriter(PrintWriter printWriter) {
+        this.printWriter = printWriter;
+    }
+
+    /**
+     * Get print writer.
+     * 
+     * @return
+     */
+    public PrintWriter getPrintWriter() {
+        return printWriter;
+    }
+}
+
+/**
+ * Dstore meta.
+ */
+class DstoreMeta {
+    private static final long LOAD_HALF_LIFE = 1000000000L;
+
+    private int port;
+    private BufferedReader input;
+    private PrintWriter output;
+    private ConcurrentHashMap<String, FileMeta> fileMeta;
+    private ConcurrentHashMap<String, CompletableFuture<String> > pendingReplies;
+    private long nextRequest;
+    private volatile boolean closed;
+    private PlacementIndex placementIndex;
+    private AtomicLong storedBytes;
+    private double loadRate;
+    private long loadStamp;
+    private volatile long reportedFree;
+    private volatile long storedAtReport;
+    private Set<FileMeta> reservations;
+    private AtomicLong reservedBytes;
+
+    /**
+     * Constructor.
+     * 
+     * @param port
+     * @param input
+     * @param output
+     */
+    public DstoreMeta(int port, BufferedReader input, PrintWriter output) {
+        this.port = port;
+        this.input = input;
+        this.output = output;
+        this.fileMeta = new ConcurrentHashMap<>();
+        this.pendingReplies = new ConcurrentHashMap<>();
+        this.closed = false;
+        this.storedBytes = new AtomicLong();
+        this.loadStamp = System.nanoTime();
+        this.reportedFree = -1;
+        this.reservations = ConcurrentHashMap.newKeySet();
+        this.reservedBytes = new AtomicLong();
+    }
+
+    /**
+     * Send a request over the JOIN connection as REQUEST id. The dstore
+     * answers slow ones out of order, so the reply is matched by the id it
+     * echoes, and one arriving after the request timed out is dropped.
+     * 
+     * @param command
+     * @return
+     */
+    public synchronized CompletableFuture<String> request(String command) {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        if (closed) {
+            // Gone until the next rebalance drops it, so fail now instead of at the timeout.
+            reply.completeExceptionally(new IOException("Dstore " + port + " disconnected."));
+            return reply;
+        }
+        String id = Long.toString(nextRequest++);
+        pendingReplies.put(id, reply);
+        reply.whenComplete((result, e) -> pendingReplies.remove(id, reply));
+        output.println(Protocol.REQUEST_TOKEN + " " + id + " " + command);
+        output.flush();
+        return reply;
+    }
+
+    /**
+     * Complete the request a REPLY names with its reply.
+     * 
+     * @param command
+     */
+    public void completeReply(String command) {
+        String[] tokens = command.split(" ", 3);
+        if (tokens.length != 3) {
+            return;
+        }
+        CompletableFuture<String> pending = pendingReplies.remove(tokens[1]);
+        if (pending != null) {
+            pending.complete(tokens[2]);
+        }
+    }
+
+    /**
+     * Fail all waiting requests and any made later, the dstore disconnected.
+     */
+    public synchronized void failReplies() {
+        closed = true;
+        for (CompletableFuture<String> pending: pendingReplies.values()) {
+            pending.completeExceptionally(new IOException("Dstore " + port + " disconnected."));
+        }
+    }
+
+    /**
+     * Is closed, disconnected but not yet dropped by a rebalance.
+     * 
+     * @return
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Get port.
+     * 
+     * @return
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get input.
+     * 
+     * @return
+     */
+    public BufferedReader getInput() {
+        return input;
+    }
+
+    /**
+     * Get output.
+     * 
+     * @return
+     */
+    public PrintWriter getOutput() {
+        return output;
+    }
+
+    /**
+     * Contains file.
+     * 
+     * @param filename
+     * @return
+     */
+    public boolean containsFile(String filename) {
+        return fileMeta.containsKey(filename);
+    }
+    
+    /**
+     * Get file meta.
+     * 
+     * @param filename
+     * @return
+     */
+    public FileMeta getFileMeta(String filename) {
+        return fileMeta.get(filename);
+    }
+
+    /**
+     * Add file meta.
+     * 
+     * @param fileMeta
+     */
+    public void addFileMeta(FileMeta fileMeta) {
+        FileMeta replaced = this.fileMeta.put(fileMeta.getFilename(), fileMeta);
+        storedBytes.addAndGet(fileMeta.getFilesize() - (replaced == null ? 0 : replaced.getFilesize()));
+        if (placementIndex != null) {
+            placementIndex.update(this);
+        }
+    }
+
+    /**
+     * Remove file meta.
+     * 
+     * @param filename
+     */
+    public void removeFileMeta(String filename) {
+        FileMeta fileMeta = this.fileMeta.remove(filename);
+        if (fileMeta != null) {
+            fileMeta.removeDstoreMeta(this);
+            storedBytes.addAndGet(-fileMeta.getFilesize());
+        }
+        if (placementIndex != null) {
+            placementIndex.update(this);
+        }
+    }
+
+    /**
+     * Get all filename.
+     * 
+     * @return
+     */
+    public ArrayList<String> getAllFilename() {
+        ArrayList<String> filenames = new ArrayList<>();
+        for (String filename: fileMeta.keySet()) {
+            filenames.add(filename);
+        }
+        return filenames;
+    }
+
+    /**
+     * Get file count.
+     * 
+     * @return
+     */
+    public int getFileCount() {
+        return fileMeta.size();
+    }
+
+    /**
+     * Get stored bytes, the sum of the sizes of the files placed here.
+     * 
+     * @return
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Get load, the LOADs sent here recently, each one halving in weight
+     * every LOAD_HALF_LIFE nanoseconds.
+     * 
+     * @return
+     */
+    public synchronized double getLoad() {
+        decayLoad();
+        return loadRate;
+    }
+
+    /**
+     * Add a LOAD sent here.
+     */
+    public synchronized void addLoad() {
+        decayLoad();
+        loadRate += 1;
+    }
+
+    /**
+     * Decay load to now.
+     */
+    private void decayLoad() {
+        long now = System.nanoTime();
+        loadRate *= Math.pow(0.5, (double) (now - loadStamp) / LOAD_HALF_LIFE);
+        loadStamp = now;
+    }
+
+    /**
+     * Set free bytes reported by the dstore.
+     * 
+     * @param free
+     */
+    public void setFreeBytes(long free) {
+        storedAtReport = storedBytes.get();
+        reportedFree = free;
+    }
+
+    /**
+     * Get free bytes, the last report less what was placed here since and
+     * what is reserved for STOREs not acked yet.
+     * 
+     * @return Long.MAX_VALUE if the dstore never reported
+     */
+    public long getFreeBytes() {
+        long free = reportedFree;
+        if (free < 0) {
+            return Long.MAX_VALUE;
+        }
+        return free - Math.max(0, storedBytes.get() - storedAtReport) - reservedBytes.get();
+    }
+
+    /**
+     * Reserve room for a file placed here until it is acked.
+     * 
+     * @param fileMeta
+     */
+    public void reserve(FileMeta fileMeta) {
+        if (reservations.add(fileMeta)) {
+            reservedBytes.addAndGet(fileMeta.getFilesize());
+        }
+    }
+
+    /**
+     * Release the room reserved for a file, if any.
+     * 
+     * @param fileMeta
+     */
+    public void release(FileMeta fileMeta) {
+        if (reservations.remove(fileMeta)) {
+            reservedBytes.addAndGet(-fileMeta.getFilesize());
+        }
+    }
+
+    /**
+     * Has room for a file, keeping headroom bytes free.
+     * 
+     * @param filesize
+     * @param headroom
+     * @return
+     */
+    public boolean hasRoom(long filesize, long headroom) {
+        long free = getFreeBytes();
+        return free == Long.MAX_VALUE || free - headroom >= filesize;
+    }
+
+    /**
+     * Set placement index to re-key on stored bytes changes.
+     * 
+     * @param placementIndex
+     */
+    public void setPlacementIndex(PlacementIndex placementIndex) {
+        this.placementIndex = placementIndex;
+    }
+};
+
+/**
+ * Placement index, an indexed min-heap of dstores keyed by stored bytes.
+ * Each dstore re-keys itself whenever its stored bytes change, so choosing
+ * the R least loaded dstores costs O(R log N) instead of a sort per STORE.
+ */
+class PlacementIndex {
+    private ArrayList<DstoreMeta> heap;
+    private HashMap<DstoreMeta, Integer> position;
+    private HashMap<DstoreMeta, Long> key;
+
+    /**
+     * Constructor.
+     */
+    public PlacementIndex() {
+        this.heap = new ArrayList<>();
+        this.position = new HashMap<>();
+        this.key = new HashMap<>();
+    }
+
+    /**
+     * Add dstore.
+     * 
+     * @param dstoreMeta
+     */
+    public synchronized void add(DstoreMeta dstoreMeta) {
+        if (position.containsKey(dstoreMeta)) {
+            return;
+        }
+        heap.add(dstoreMeta);
+        position.put(dstoreMeta, heap.size() - 1);
+        key.put(dstoreMeta, dstoreMeta.getStoredBytes());
+        siftUp(heap.size() - 1);
+        dstoreMeta.setPlacementIndex(this);
+    }
+
+    /**
+     * Remove dstore.
+     * 
+     * @param dstoreMeta
+     */
+    public synchronized void remove(DstoreMeta dstoreMeta) {
+        Integer i = position.remove(dstoreMeta);
+        if (i == null) {
+            return;
+        }
+        key.remove(dstoreMeta);
+        DstoreMeta last = heap.remove(heap.size() - 1);
+        if (i < heap.size()) {
+            heap.set(i, last);
+            position.put(last, i);
+            siftUp(i);
+            siftDown(position.get(last));
+        }
+    }
+
+    /**
+     * Re-key dstore after its stored bytes changed.
+     * 
+     * @param dstoreMeta
+     */
+    public synchronized void update(DstoreMeta dstoreMeta) {
+        Integer i = position.get(dstoreMeta);
+        if (i == null) {
+            return;
+        }
+        key.put(dstoreMeta, dstoreMeta.getStoredBytes());
+        siftUp(i);
+        siftDown(position.get(dstoreMeta));
+    }
+
+    /**
+     * Select least loaded dstores, least loaded first.
+     * 
+     * @param count
+     * @return at most count dstores
+     */
+    public synchronized ArrayList<DstoreMeta> selectLeast(int count) {
+        return selectLeast(count, 0, 0);
+    }
+
+    /**
+     * Select least loaded dstores with room for a file, least loaded first.
+     * Dstores that would drop below headroom free bytes are skipped.
+     * 
+     * @param count
+     * @param filesize
+     * @param headroom
+     * @return at most count dstores
+     */
+    public synchronized ArrayList<DstoreMeta> selectLeast(int count, long filesize, long headroom) {
+        ArrayList<DstoreMeta> selected = new ArrayList<>();
+        ArrayList<DstoreMeta> popped = new ArrayList<>();
+        while (selected.size() < count && !heap.isEmpty()) {
+            DstoreMeta dstoreMeta = heap.get(0);
+            popped.add(dstoreMeta);
+            remove(dstoreMeta);
+            if (dstoreMeta.hasRoom(filesize, headroom)) {
+                selected.add(dstoreMeta);
+            }
+        }
+        for (DstoreMeta dstoreMeta: popped) {
+            add(dstoreMeta);
+        }
+        return selected;
+    }
+
+    /**
+     * Sift up.
+     * 
+     * @param i
+     */
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (key.get(heap.get(parent)) <= key.get(heap.get(i))) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    /**
+     * Sift down.
+     * 
+     * @param i
+     */
+    private void siftDown(int i) {
+        while (true) {
+            int least = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < heap.size(); child++) {
+                if (key.get(heap.get(child)) < key.get(heap.get(least))) {
+                    least = child;
+                }
+            }
+            if (least == i) {
+                return;
+            }
+            swap(i, least);
+            i = least;
+        }
+    }
+
+    /**
+     * Swap.
+     * 
+     * @param i
+     * @param j
+     */
+    private void swap(int i, int j) {
+        DstoreMeta a = heap.get(i);
+        DstoreMeta b = heap.get(j);
+        heap.set(i, b);
+        heap.set(j, a);
+        position.put(b, i);
+        position.put(a, j);
+    }
+}
+
+/**
+ * Rendezvous (highest random weight) hashing. A file belongs on the R live
+ * dstores with the highest score for its name, so any node can compute the
+ * replica set and a join or leave only moves the files whose top R changed,
+ * about 1/N of them.
+ */
+class Rendezvous {
+
+    /**
+     * Score of a dstore for a file.
+     * 
+     * @param filename
+     * @param port
+     * @return
+     */
+    public static long score(String filename, int port) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < filename.length(); i++) {
+            h = (h ^ filename.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h ^ mix(port));
+    }
+
+    /**
+     * Rank dstores for a file, highest score first.
+     * 
+     * @param filename
+     * @param dstores
+     * @return
+     */
+    public static ArrayList<DstoreMeta> rank(String filename, Collection<DstoreMeta> dstores) {
+        ArrayList<DstoreMeta> ranked = new ArrayList<>(dstores);
+        HashMap<DstoreMeta, Long> scores = new HashMap<>();
+        for (DstoreMeta dstoreMeta: ranked) {
+            scores.put(dstoreMeta, score(filename, dstoreMeta.getPort()));
+        }
+        ranked.sort((a, b) -> Long.compare(scores.get(b), scores.get(a)));
+        return ranked;
+    }
+
+    /**
+     * Finalizer of 64 bit MurmurHash3.
+     * 
+     * @param h
+     * @return
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+/**
+ * List view, the LIST reply kept in step with stores and removes. Names are
+ * split over segments that each keep their own rendered text, so a change
+ * only re-renders its segment, and the reply is joined at most once per
+ * version and shared by every LIST until the next change. A sorted copy of
+ * the names serves LIST_PAGE.
+ */
+class ListView {
+    private static final int SEGMENTS = 64;
+
+    private ConcurrentSkipListSet<String> sorted;
+    private Set<String>[] filenames;
+    private AtomicLong[] versions;
+    private long[] renderedVersions;
+    private String[] renderedSegments;
+    private AtomicLong version;
+    private volatile long renderedVersion;
+    private volatile String rendered;
+
+    /**
+     * Constructor.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ListView() {
+        this.filenames = new Set[SEGMENTS];
+        this.versions = new AtomicLong[SEGMENTS];
+        this.renderedVersions = new long[SEGMENTS];
+        this.renderedSegments = new String[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            filenames[i] = ConcurrentHashMap.newKeySet();
+            versions[i] = new AtomicLong();
+            renderedVersions[i] = -1;
+        }
+        this.sorted = new ConcurrentSkipListSet<>();
+        this.version = new AtomicLong();
+        this.renderedVersion = -1;
+    }
+
+    /**
+     * Add file once its store completed.
+     * 
+     * @param filename
+     */
+    public void add(String filename) {
+        int i = segment(filename);
+        if (filenames[i].add(filename)) {
+            sorted.add(filename);
+            versions[i].incrementAndGet();
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove file once its removal started.
+     * 
+     * @param filename
+     */
+    public void remove(String filename) {
+        int i = segment(filename);
+        if (filenames[i].remove(filename)) {
+            sorted.remove(filename);
+            versions[i].incrementAndGet();
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get LIST reply of the current version.
+     * 
+     * @return
+     */
+    public String getResponse() {
+        if (renderedVersion == version.get()) {
+            return rendered;
+        }
+        synchronized (this) {
+            // Read versions before the names, a change racing the render bumps them again.
+            long current = version.get();
+            if (renderedVersion != current) {
+                int length = Protocol.LIST_TOKEN.length() + 1;
+                for (int i = 0; i < SEGMENTS; i++) {
+                    length += renderSegment(i).length();
+                }
+                StringBuilder stringBuilder = new StringBuilder(length);
+                stringBuilder.append(Protocol.LIST_TOKEN);
+                for (int i = 0; i < SEGMENTS; i++) {
+                    stringBuilder.append(renderedSegments[i]);
+                }
+                if (stringBuilder.length() == Protocol.LIST_TOKEN.length()) {
+                    stringBuilder.append(" ");
+                }
+                rendered = stringBuilder.toString();
+                renderedVersion = current;
+            }
+            return rendered;
+        }
+    }
+
+    /**
+     * Get number of files listed.
+     * 
+     * @return
+     */
+    public int size() {
+        return sorted.size();
+    }
+
+    /**
+     * Get LIST_PAGE reply.
+     * 
+     * @param listPage
+     * @return
+     */
+    public String getPage(ListPage listPage) {
+        return listPage.getReply(sorted);
+    }
+
+    /**
+     * Render segment, each name with a leading space.
+     * 
+     * @param i
+     * @return
+     */
+    private String renderSegment(int i) {
+        long current = versions[i].get();
+        if (renderedVersions[i] != current) {
+            StringBuilder stringBuilder = new StringBuilder();
+            for (String filename: filenames[i]) {
+                stringBuilder.append(" ");
+                stringBuilder.append(filename);
+            }
+            renderedSegments[i] = stringBuilder.toString();
+            renderedVersions[i] = current;
+        }
+        return renderedSegments[i];
+    }
+
+    /**
+     * Segment of a file.
+     * 
+     * @param filename
+     * @return
+     */
+    private int segment(String filename) {
+        return (filename.hashCode() & 0x7fffffff) % SEGMENTS;
+    }
+}
+
+/**
+ * Metadata log, a write-ahead log of store and remove completions with
+ * periodic snapshots. Appends are group committed: one writer thread writes
+ * every record queued since its last flush and forces them to disk once,
+ * completing the whole batch together. After snapshotEvery records it
+ * switches to a new log segment and snapshots the index, so replay reads
+ * the latest snapshot and only the segments after it.
+ */
+class MetaLog {
+    private static final String LOG_PREFIX = "log-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private File dir;
+    private long snapshotEvery;
+    private Supplier<List<String> > snapshotSource;
+    private long segment;
+    private FileChannel channel;
+    private ArrayList<String> pending;
+    private CompletableFuture<Void> pendingCommit;
+    private long records;
+
+    /**
+     * Constructor.
+     * 
+     * @param dir
+     * @param snapshotEvery records between snapshots
+     * @param snapshotSource records describing the whole index
+     */
+    public MetaLog(String dir, long snapshotEvery, Supplier<List<String> > snapshotSource) {
+        this.dir = new File(dir);
+        this.snapshotEvery = snapshotEvery;
+        this.snapshotSource = snapshotSource;
+        this.pending = new ArrayList<>();
+        this.pendingCommit = new CompletableFuture<>();
+    }
+
+    /**
+     * Recover the index from the latest snapshot and the log after it, then
+     * open a new segment for appends.
+     * 
+     * @param apply
+     * @return records replayed
+     * @throws IOException
+     */
+    public long recover(Consumer<String> apply) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Create " + dir + " failed.");
+        }
+        long snapshot = -1;
+        long last = -1;
+        for (String name: dir.list()) {
+            if (name.startsWith(SNAPSHOT_PREFIX) && !name.endsWith(".tmp")) {
+                snapshot = Math.max(snapshot, Long.valueOf(name.substring(SNAPSHOT_PREFIX.length())));
+            } else if (name.startsWith(LOG_PREFIX)) {
+                last = Math.max(last, Long.valueOf(name.substring(LOG_PREFIX.length())));
+            }
+        }
+        long count = 0;
+        if (snapshot >= 0) {
+            count += replay(new File(dir, SNAPSHOT_PREFIX + snapshot), apply);
+        }
+        for (long i = Math.max(snapshot, 0); i <= last; i++) {
+            File file = new File(dir, LOG_PREFIX + i);
+            if (file.exists()) {
+                count += replay(file, apply);
+            }
+        }
+        segment = Math.max(snapshot, last) + 1;
+        channel = openSegment(segment);
+        Thread writer = new Thread(this::write);
+        writer.setDaemon(true);
+        writer.start();
+        return count;
+    }
+
+    /**
+     * Append a record.
+     * 
+     * @param record
+     * @return completed once the record is on disk
+     */
+    public synchronized CompletableFuture<Void> append(String record) {
+        pending.add(record);
+        notify();
+        return pendingCommit;
+    }
+
+    /**
+     * Writer thread, commits queued records in batches.
+     */
+    private void write() {
+        while (true) {
+            ArrayList<String> batch;
+            CompletableFuture<Void> commit;
+            synchronized (this) {
+                while (pending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                batch = pending;
+                commit = pendingCommit;
+                pending = new ArrayList<>();
+                pendingCommit = new CompletableFuture<>();
+            }
+            try {
+                StringBuilder stringBuilder = new StringBuilder();
+                for (String record: batch) {
+                    stringBuilder.append(record);
+                    stringBuilder.append("\n");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(stringBuilder.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                commit.complete(null);
+            } catch (IOException e) {
+                e.printStackTrace();
+                commit.completeExceptionally(e);
+            }
+            records += batch.size();
+            if (records >= snapshotEvery) {
+                records = 0;
+                rotate();
+            }
+        }
+    }
+
+    /**
+     * Switch to a new segment and snapshot the index behind it. Records in
+     * the new segment may already show in the snapshot, replaying them again
+     * gives the same index.
+     */
+    private void rotate() {
+        try {
+            channel.close();
+            segment++;
+            channel = openSegment(segment);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        long start = segment;
+        Thread snapshotter = new Thread(() -> snapshot(start));
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    /**
+     * Write snapshot replacing every segment before start.
+     * 
+     * @param start
+     */
+    private void snapshot(long start) {
+        File temp = new File(dir, SNAPSHOT_PREFIX + start + ".tmp");
+        try (FileChannel snapshotChannel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            StringBuilder stringBuilder = new StringBuilder();
+            for (String record: snapshotSource.get()) {
+                stringBuilder.append(record);
+                stringBuilder.append("\n");
+                if (stringBuilder.length() > 1 << 20) {
+                    writeFully(snapshotChannel, stringBuilder);
+                }
+            }
+            writeFully(snapshotChannel, stringBuilder);
+            snapshotChannel.force(true);
+            Files.move(temp.toPath(), new File(dir, SNAPSHOT_PREFIX + start).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (String name: dir.list()) {
+            if ((name.startsWith(LOG_PREFIX) && Long.valueOf(name.substring(LOG_PREFIX.length())) < start)
+                    || (name.startsWith(SNAPSHOT_PREFIX) && !name.endsWith(".tmp") && Long.valueOf(name.substring(SNAPSHOT_PREFIX.length())) < start)) {
+                new File(dir, name).delete();
+            }
+        }
+        System.out.println("Snapshot " + start + " written.");
+    }
+
+    /**
+     * Write and clear text.
+     * 
+     * @param channel
+     * @param stringBuilder
+     * @throws IOException
+     */
+    private static void writeFully(FileChannel channel, StringBuilder stringBuilder) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(stringBuilder.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        stringBuilder.setLength(0);
+    }
+
+    /**
+     * Open segment for appends.
+     * 
+     * @param segment
+     * @return
+     * @throws IOException
+     */
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(new File(dir, LOG_PREFIX + segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Replay a snapshot or segment, mapped into memory. A torn last record,
+     * one without its newline, is skipped.
+     * 
+     * @param file
+     * @param apply
+     * @return records replayed
+     * @throws IOException
+     */
+    private static long replay(File file, Consumer<String> apply) throws IOException {
+        long count = 0;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            long position = 0;
+            byte[] line = new byte[256];
+            while (position < size) {
+                MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, Integer.MAX_VALUE));
+                int length = 0;
+                int consumed = 0;
+                for (int i = 0; i < buffer.limit(); i++) {
+                    byte b = buffer.get(i);
+                    if (b == '\n') {
+                        apply.accept(new String(line, 0, length, StandardCharsets.UTF_8));
+                        count++;
+                        length = 0;
+                        consumed = i + 1;
+                    } else {
+                        if (length == line.length) {
+                            line = Arrays.copyOf(line, 2 * length);
+                        }
+                        line[length++] = b;
+                    }
+                }
+                if (consumed == 0) {
+                    break;
+                }
+                position += consumed;
+            }
+        }
+        return count;
+    }
+}
+
+/**
+ * Rebalance plan, the files each dstore sends and removes.
+ */
+class RebalancePlan {
+    private HashMap<DstoreMeta, LinkedHashMap<String, ArrayList<DstoreMeta> > > sends;
+    private HashMap<DstoreMeta, ArrayList<String> > removes;
+    private HashMap<DstoreMeta, LinkedHashMap<String, String> > repairs;
+    private HashMap<DstoreMeta, ArrayList<String> > repaired;
+
+    /**
+     * Constructor.
+     */
+    public RebalancePlan() {
+        this.sends = new HashMap<>();
+        this.removes = new HashMap<>();
+        this.repairs = new HashMap<>();
+        this.repaired = new HashMap<>();
+    }
+
+    /**
+     * Add send.
+     * 
+     * @param source
+     * @param filename
+     * @param target
+     */
+    public void addSend(DstoreMeta source, String filename, DstoreMeta target) {
+        sends.computeIfAbsent(source, k -> new LinkedHashMap<>()).computeIfAbsent(filename, k -> new ArrayList<>()).add(target);
+    }
+
+    /**
+     * Add remove.
+     * 
+     * @param dstoreMeta
+     * @param filename
+     */
+    public void addRemove(DstoreMeta dstoreMeta, String filename) {
+        removes.computeIfAbsent(dstoreMeta, k -> new ArrayList<>()).add(filename);
+    }
+
+    /**
+     * Add repair of a lost shard.
+     * 
+     * @param target
+     * @param shard
+     * @param command REPAIR command rebuilding it
+     */
+    public void addRepair(DstoreMeta target, String shard, String command) {
+        repairs.computeIfAbsent(target, k -> new LinkedHashMap<>()).put(shard, command);
+    }
+
+    /**
+     * Get repairs, REPAIR commands by shard and target.
+     * 
+     * @return
+     */
+    public HashMap<DstoreMeta, LinkedHashMap<String, String> > getRepairs() {
+        return repairs;
+    }
+
+    /**
+     * Set repaired, the target now holding the shard.
+     * 
+     * @param target
+     * @param shard
+     */
+    public void setRepaired(DstoreMeta target, String shard) {
+        repaired.computeIfAbsent(target, k -> new ArrayList<>()).add(shard);
+    }
+
+    /**
+     * Get repaired shards of a dstore.
+     * 
+     * @param dstoreMeta
+     * @return
+     */
+    public ArrayList<String> getRepaired(DstoreMeta dstoreMeta) {
+        return repaired.getOrDefault(dstoreMeta, new ArrayList<>());
+    }
+
+    /**
+     * Get dstores that repaired a shard.
+     * 
+     * @return
+     */
+    public Set<DstoreMeta> getRepairedDstores() {
+        return repaired.keySet();
+    }
+
+    /**
+     * Get sends of a dstore, targets by filename.
+     * 
+     * @param dstoreMeta
+     * @return
+     */
+    public LinkedHashMap<String, ArrayList<DstoreMeta> > getSends(DstoreMeta dstoreMeta) {
+        return sends.getOrDefault(dstoreMeta, new LinkedHashMap<>());
+    }
+
+    /**
+     * Get removes of a dstore.
+     * 
+     * @param dstoreMeta
+     * @return
+     */
+    public ArrayList<String> getRemoves(DstoreMeta dstoreMeta) {
+        return removes.getOrDefault(dstoreMeta, new ArrayList<>());
+    }
+
+    /**
+     * Get dstores with something to do.
+     * 
+     * @return
+     */
+    public HashSet<DstoreMeta> getDstores() {
+        HashSet<DstoreMeta> dstores = new HashSet<>(sends.keySet());
+        dstores.addAll(removes.keySet());
+        return dstores;
+    }
+
+    /**
+     * Get REBALANCE command of a dstore.
+     * 
+     * @param dstoreMeta
+     * @return
+     */
+    public String getCommand(DstoreMeta dstoreMeta) {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(Protocol.REBALANCE_TOKEN);
+        LinkedHashMap<String, ArrayList<DstoreMeta> > toSend = getSends(dstoreMeta);
+        stringBuilder.append(" ");
+        stringBuilder.append(toSend.size());
+        for (Entry<String, ArrayList<DstoreMeta> > entry: toSend.entrySet()) {
+            stringBuilder.append(" ");
+            stringBuilder.append(entry.getKey());
+            stringBuilder.append(" ");
+            stringBuilder.append(entry.getValue().size());
+            for (DstoreMeta target: entry.getValue()) {
+                stringBuilder.append(" ");
+                stringBuilder.append(target.getPort());
+            }
+        }
+        ArrayList<String> toRemove = getRemoves(dstoreMeta);
+        stringBuilder.append(" ");
+        stringBuilder.append(toRemove.size());
+        for (String filename: toRemove) {
+            stringBuilder.append(" ");
+            stringBuilder.append(filename);
+        }
+        return stringBuilder.toString();
+    }
+}
+
+/**
+ * Class controller.
+ */
+public class Controller {
+
+    private int cport;
+    private int R;
+    private int timeout;
+    private int rebalancePeriod;
+    private long stripeSize;
+    private long headroom;
+    private String placementMode;
+    private String engine;
+    private int workers;
+
+    private ConcurrentHashMap<String, FileMeta> fileMeta;
+    private ConcurrentHashMap<Integer, DstoreMeta> dStoreMeta;
+    private ConcurrentHashMap<Integer, Integer> portMap;
+    private ConcurrentHashMap<String, FileMeta> digests;
+    private PlacementIndex placementIndex;
+    private ListView listView;
+    private boolean chained;
+    private boolean trustDigests;
+    private int dataShards;
+    private int parityShards;
+    private long erasureMin;
+    private MetaLog metaLog;
+    private AtomicBoolean merging;
+    private int coldStartDstores;
+    private Set<Integer> advertising;
+    private ConcurrentHashMap<String, ArrayList<FileMeta> > mergeCopies;
+    private ReadWriteLock rebalanceLock;
+    private ReentrantLock rebalanceMutex;
+
+    /**
+     * Constructor.
+     * 
+     * @param cport
+     * @param R
+     * @param timeout
+     * @param rebalancePeriod
+     * @param options
+     */
+    public Controller(int cport, int R, int timeout, int rebalancePeriod, Options options) {
+        this.cport = cport;
+        this.R = R;
+        this.timeout = timeout;
+        this.rebalancePeriod = rebalancePeriod;
+        this.stripeSize = options.getLong("stripe-size", 0);
+        this.headroom = options.getLong("headroom", 0);
+        this.placementMode = options.get("placement", "load");
+        this.chained = options.has("chain");
+        this.trustDigests = options.has("trust-digests");
+        if (options.has("erasure")) {
+            String[] shards = options.get("erasure", "").split(",");
+            this.dataShards = Integer.valueOf(shards[0]);
+            this.parityShards = Integer.valueOf(shards[1]);
+            this.erasureMin = options.getLong("erasure-min", 0);
+        }
+        this.engine = options.get("engine", "thread");
+        this.workers = options.getInt("workers", Runtime.getRuntime().availableProcessors());
+        this.fileMeta = new ConcurrentHashMap<>();
+        this.dStoreMeta = new ConcurrentHashMap<>();
+        this.portMap = new ConcurrentHashMap<>();
+        this.digests = new ConcurrentHashMap<>();
+        this.placementIndex = new PlacementIndex();
+        this.listView = new ListView();
+        this.rebalanceLock = new ReentrantReadWriteLock();
+        this.rebalanceMutex = new ReentrantLock();
+        if (options.has("meta-dir")) {
+            this.metaLog = new MetaLog(options.get("meta-dir", null), options.getLong("snapshot-every", 100000), this::getMetaRecords);
+            this.recoverMeta();
+        }
+        this.merging = new AtomicBoolean(false);
+        this.advertising = ConcurrentHashMap.newKeySet();
+        this.mergeCopies = new ConcurrentHashMap<>();
+        if (options.has("cold-start")) {
+            this.startColdStart(options);
+        }
+
+        this.handlePeriod();
+        this.handleRequest();
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param cport
+     * @param R
+     * @param timeout
+     * @param rebalancePeriod
+     */
+    public Controller(int cport, int R, int timeout, int rebalancePeriod) {
+        this(cport, R, timeout, rebalancePeriod, new Options());
+    }
+
+    /**
+     * Recover metadata from the log. Files come back stored with no replicas
+     * until dstores join and advertise or list them.
+     */
+    private void recoverMeta() {
+        try {
+            long start = System.currentTimeMillis();
+            long count = metaLog.recover(this::applyMetaRecord);
+            System.out.println("Recovered " + listView.size() + " files from " + count + " log records in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Start cold start, rebuilding the index from what joining dstores
+     * advertise. Client requests wait until the dstores expected, R unless
+     * given, have joined and advertised everything, or until the wait runs
+     * out.
+     * 
+     * @param options
+     */
+    private void startColdStart(Options options) {
+        if (listView.size() > 0) {
+            System.out.println("Cold start skipped, metadata recovered.");
+            return;
+        }
+        String expected = options.get("cold-start", "true");
+        this.coldStartDstores = expected.equals("true") ? R : Integer.valueOf(expected);
+        long wait = options.getLong("cold-start-wait", 10000);
+        merging.set(true);
+        Threads.start(() -> {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            finishMerge();
+        });
+    }
+
+    /**
+     * Is merging dstore inventories on cold start.
+     * 
+     * @return
+     */
+    public boolean isMerging() {
+        return merging.get();
+    }
+
+    /**
+     * Dstore begins advertising its files.
+     * 
+     * @param port
+     */
+    public void beginAdvertise(int port) {
+        if (isMerging()) {
+            advertising.add(port);
+        }
+    }
+
+    /**
+     * Dstore finished advertising, or left. Finish the merge once every
+     * expected dstore is in and none is still advertising.
+     * 
+     * @param port
+     */
+    public void endAdvertise(int port) {
+        advertising.remove(port);
+        if (isMerging() && advertising.isEmpty() && getDstoreMetaCount() >= coldStartDstores) {
+            finishMerge();
+        }
+    }
+
+    /**
+     * Collect an advertised copy for the merge. Dstores advertise in
+     * parallel, copies of a name are kept apart by size and checksum until
+     * finishMerge picks one, so no copy is removed before every dstore has
+     * been heard.
+     * 
+     * @param dstoreMeta
+     * @param filename
+     * @param filesize
+     * @param checksum
+     */
+    private void mergeReplica(DstoreMeta dstoreMeta, String filename, long filesize, long checksum) {
+        ArrayList<FileMeta> copies = mergeCopies.computeIfAbsent(filename, k -> new ArrayList<>());
+        synchronized (copies) {
+            for (FileMeta copy: copies) {
+                if (copy.getFilesize() == filesize && copy.getChecksum() == checksum) {
+                    copy.addDStoreMeta(dstoreMeta);
+                    return;
+                }
+            }
+            FileMeta copy = new FileMeta(filename, filesize);
+            copy.setChecksum(checksum);
+            copy.setStatus(Status.STORE_COMPLETE);
+            copy.addDStoreMeta(dstoreMeta);
+            copies.add(copy);
+        }
+    }
+
+    /**
+     * Pick the copy of a file held by the most dstores still joined, the
+     * first advertised on a tie, and adopt it as their replica. Holders of
+     * any other copy are added to stale.
+     * 
+     * @param copies
+     * @param stale
+     * @return null if no holder is left
+     */
+    private FileMeta resolveCopies(ArrayList<FileMeta> copies, HashMap<DstoreMeta, ArrayList<String> > stale) {
+        FileMeta chosen = null;
+        for (FileMeta copy: copies) {
+            for (DstoreMeta holder: copy.getDStoreMeta()) {
+                if (dStoreMeta.get(holder.getPort()) != holder) {
+                    copy.removeDstoreMeta(holder);
+                }
+            }
+            if (copy.getDStoreMeta().size() > (chosen == null ? 0 : chosen.getDStoreMeta().size())) {
+                chosen = copy;
+            }
+        }
+        for (FileMeta copy: copies) {
+            for (DstoreMeta holder: copy.getDStoreMeta()) {
+                if (copy == chosen) {
+                    holder.addFileMeta(copy);
+                } else {
+                    stale.computeIfAbsent(holder, k -> new ArrayList<>()).add(copy.getFilename());
+                }
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Finish the merge. Of conflicting copies the majority one is kept and
+     * the others are removed. Stripes are put back under their file when
+     * every stripe was found, otherwise they stay plain files. Files are
+     * listed and logged, and those with fewer than R replicas are repaired
+     * by a rebalance right away.
+     */
+    private void finishMerge() {
+        rebalanceLock.writeLock().lock();
+        if (!merging.get()) {
+            rebalanceLock.writeLock().unlock();
+            return;
+        }
+        HashMap<DstoreMeta, ArrayList<String> > stale = new HashMap<>();
+        for (Entry<String, ArrayList<FileMeta> > entry: mergeCopies.entrySet()) {
+            FileMeta file = resolveCopies(entry.getValue(), stale);
+            if (file != null) {
+                this.fileMeta.put(entry.getKey(), file);
+            }
+        }
+        mergeCopies.clear();
+        HashMap<String, ArrayList<FileMeta> > striped = new HashMap<>();
+        ArrayList<FileMeta> files = new ArrayList<>();
+        for (FileMeta file: this.fileMeta.values()) {
+            if (getStripeIndex(file.getFilename()) == -1) {
+                files.add(file);
+            } else {
+                String filename = file.getFilename();
+                striped.computeIfAbsent(filename.substring(0, filename.lastIndexOf(FileMeta.STRIPE_SEPARATOR)), k -> new ArrayList<>()).add(file);
+            }
+        }
+        int unmerged = 0;
+        for (Entry<String, ArrayList<FileMeta> > entry: striped.entrySet()) {
+            FileMeta parent = makeParent(entry.getKey(), entry.getValue());
+            if (parent == null) {
+                files.addAll(entry.getValue());
+                unmerged++;
+            } else {
+                files.add(parent);
+            }
+        }
+        int repair = 0;
+        ArrayList<CompletableFuture<Void> > logged = new ArrayList<>();
+        for (FileMeta file: files) {
+            if (metaLog == null) {
+                listView.add(file.getFilename());
+            } else {
+                file.setStatus(Status.STORE_LOGGING);
+                logged.add(metaLog.append(getStoreRecord(file)));
+            }
+            for (FileMeta part: file.isStriped() ? file.getStripes() : Collections.singletonList(file)) {
+                if (part.getDStoreMeta().size() < R) {
+                    repair++;
+                    break;
+                }
+            }
+        }
+        merging.set(false);
+        rebalanceLock.writeLock().unlock();
+        int conflicts = 0;
+        for (Entry<DstoreMeta, ArrayList<String> > entry: stale.entrySet()) {
+            PrintWriter doutput = entry.getKey().getOutput();
+            for (String filename: entry.getValue()) {
+                doutput.println(Protocol.REMOVE_TOKEN + " " + filename);
+                conflicts++;
+            }
+            doutput.flush();
+        }
+        System.out.println("Cold start merged " + files.size() + " files from " + getDstoreMetaCount() + " dstores, " + repair + " to repair, "
+                + unmerged + " incomplete striped files kept as plain files, " + conflicts + " conflicting copies removed.");
+        if (metaLog == null) {
+            Threads.start(this::rebalance);
+            return;
+        }
+        // Publish and repair once every merged file is logged.
+        CompletableFuture.allOf(logged.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+            for (FileMeta file: files) {
+                publishStoreComplete(file);
+            }
+            rebalance();
+        }, Threads::start);
+    }
+
     /**
-     * Remove dstore meta.
+     * Make a striped file from the stripes found, if they run from the first
+     * one without a gap and all but the last have the first one's size.
      * 
-     * @param dstoreMeta
+     * @param filename
+     * @param found
+     * @return null if stripes are missing
      */
-    public void removeDstoreMeta(DstoreMeta dstoreMeta) {
-        this.dstoreMeta.remove(dstoreMeta);
+    private FileMeta makeParent(String filename, ArrayList<FileMeta> found) {
+        if (this.fileMeta.containsKey(filename)) {
+            return null;
+        }
+        TreeMap<Integer, FileMeta> stripes = new TreeMap<>();
+        for (FileMeta stripe: found) {
+            stripes.put(getStripeIndex(stripe.getFilename()), stripe);
+        }
+        if (stripes.firstKey() != 0 || stripes.lastKey() != stripes.size() - 1) {
+            return null;
+        }
+        long fileStripeSize = stripes.get(0).getFilesize();
+        long filesize = 0;
+        for (FileMeta stripe: stripes.values()) {
+            boolean last = stripe == stripes.lastEntry().getValue();
+            if (stripe.getFilesize() > fileStripeSize || (!last && stripe.getFilesize() != fileStripeSize)) {
+                return null;
+            }
+            filesize += stripe.getFilesize();
+        }
+        FileMeta parent = new FileMeta(filename, filesize);
+        parent.makeStripes(fileStripeSize);
+        for (FileMeta stripe: parent.getStripes()) {
+            FileMeta merged = stripes.get(parent.getStripes().indexOf(stripe));
+            stripe.setChecksum(merged.getChecksum());
+            stripe.setStatus(Status.STORE_COMPLETE);
+            for (DstoreMeta dstoreMeta: merged.getDStoreMeta()) {
+                stripe.addDStoreMeta(dstoreMeta);
+                dstoreMeta.addFileMeta(stripe);
+            }
+            this.fileMeta.put(stripe.getFilename(), stripe);
+        }
+        parent.setStatus(Status.STORE_COMPLETE);
+        this.fileMeta.put(filename, parent);
+        return parent;
     }
 
     /**
-     * Get dstore meta.
+     * Get the stripe index a merged name ends with. Only a striping
+     * controller groups stripes, and only by a plain decimal index, so
+     * shard names (name#rs<i>) and names like a#b stay plain files.
+     * 
+     * @param filename
+     * @return -1 if not a stripe name
+     */
+    private int getStripeIndex(String filename) {
+        int split = filename.lastIndexOf(FileMeta.STRIPE_SEPARATOR);
+        if (stripeSize == 0 || split <= 0) {
+            return -1;
+        }
+        String suffix = filename.substring(split + 1);
+        try {
+            int index = Integer.valueOf(suffix);
+            return index >= 0 && String.valueOf(index).equals(suffix) ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Apply a log record, "C name size checksum stripe_size [k m | digest]"
+     * for a stored file or "R name" for a removed one.
+     * 
+     * @param record
+     */
+    private void applyMetaRecord(String record) {
+        String[] tokens = record.split(" ");
+        FileMeta old = this.fileMeta.remove(tokens[1]);
+        if (old != null) {
+            for (FileMeta stripe: old.getStripes()) {
+                this.fileMeta.remove(stripe.getFilename());
+            }
+            listView.remove(tokens[1]);
+            if (old.getDigest() != null) {
+                digests.remove(old.getDigest(), old);
+            }
+        }
+        if (tokens[0].equals("C") && tokens.length >= 5 && tokens.length <= 7) {
+            FileMeta file = new FileMeta(tokens[1], Long.valueOf(tokens[2]));
+            file.setChecksum(Long.valueOf(tokens[3]));
+            long fileStripeSize = Long.valueOf(tokens[4]);
+            if (tokens.length == 7) {
+                file.makeShards(Integer.valueOf(tokens[5]), Integer.valueOf(tokens[6]));
+            } else if (fileStripeSize > 0) {
+                file.makeStripes(fileStripeSize);
+            }
+            for (FileMeta stripe: file.getStripes()) {
+                stripe.setStatus(Status.STORE_COMPLETE);
+                this.fileMeta.put(stripe.getFilename(), stripe);
+            }
+            if (tokens.length == 6) {
+                file.setDigest(tokens[5]);
+                digests.put(tokens[5], file);
+            }
+            file.setStatus(Status.STORE_COMPLETE);
+            this.fileMeta.put(file.getFilename(), file);
+            listView.add(file.getFilename());
+        }
+    }
+
+    /**
+     * Get meta records describing every stored file, for a snapshot.
+     * 
      * @return
      */
-    public ArrayList<DstoreMeta> getDStoreMeta() {
-        return dstoreMeta;
+    private List<String> getMetaRecords() {
+        ArrayList<String> records = new ArrayList<>();
+        for (FileMeta file: this.fileMeta.values()) {
+            // A file being logged may have its record in a segment this snapshot replaces.
+            if (file.getParent() == null && (file.getStatus() == Status.STORE_COMPLETE || file.getStatus() == Status.STORE_LOGGING)) {
+                records.add(getStoreRecord(file));
+            }
+        }
+        return records;
     }
 
     /**
-     * Get r count.
+     * Get log record of a stored file.
      * 
+     * @param file
      * @return
      */
-    public int getRCount() {
-        return dstoreMeta.size();
+    private String getStoreRecord(FileMeta file) {
+        String record = "C " + file.getFilename() + " " + file.getFilesize() + " " + file.getChecksum() + " " + file.getStripeSize();
+        if (file.isErasure()) {
+            return record + " " + file.getDataShards() + " " + file.getParityShards();
+        }
+        return file.getDigest() == null ? record : record + " " + file.getDigest();
     }
 
     /**
-     * Set print writer.
+     * Get timeout.
+     * @return
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Add dstore meta.
      * 
-     * @param printWriter
+     * @param dStoreMeta
      */
-    public void setPrintWriter(PrintWriter printWriter) {
-        this.printWriter = printWriter;
+    public void addDstoreMeta(DstoreMeta dStoreMeta) {
+        rebalanceLock.readLock().lock();
+        DstoreMeta old = this.dStoreMeta.put(dStoreMeta.getPort(), dStoreMeta);
+        if (old != null) {
+            // A dstore back on its port replaces the old one and its replicas.
+            placementIndex.remove(old);
+            for (String filename: old.getAllFilename()) {
+                old.removeFileMeta(filename);
+            }
+        }
+        placementIndex.add(dStoreMeta);
+        rebalanceLock.readLock().unlock();
     }
 
     /**
-     * Get print writer.
+     * Get dstore meta count.
      * 
      * @return
      */
-    public PrintWriter getPrintWriter() {
-        return printWriter;
+    public int getDstoreMetaCount() {
+        return this.dStoreMeta.size();
     }
-}
-
-/**
- * Dstore meta.
- */
-class DstoreMeta implements Comparable<DstoreMeta> {
-    private int port;
-    private BufferedReader input;
-    private PrintWriter output;
-    private HashMap<String, FileMeta> fileMeta;
 
     /**
-     * Constructor.
+     * Get dstore meta by port.
      * 
      * @param port
-     * @param input
-     * @param output
+     * @return
      */
-    public DstoreMeta(int port, BufferedReader input, PrintWriter output) {
-        this.port = port;
-        this.input = input;
-        this.output = output;
-        this.fileMeta = new HashMap<>();
+    public DstoreMeta getDStoreMeta(int port) {
+        return this.dStoreMeta.get(port);
     }
 
     /**
-     * Get port.
+     * Is storing down a chain of dstores.
      * 
      * @return
      */
-    public int getPort() {
-        return port;
+    public boolean isChained() {
+        return chained;
     }
 
     /**
-     * Get input.
+     * Is trusting the digest a client gives in STORE, linking the file to
+     * stored content with it. Off by default, since a client knowing only
+     * the digest of a file it does not have would get a copy of it.
      * 
      * @return
      */
-    public BufferedReader getInput() {
-        return input;
+    public boolean isTrustDigests() {
+        return trustDigests;
     }
 
     /**
-     * Get output.
+     * Has enough dstore meta.
      * 
      * @return
      */
-    public PrintWriter getOutput() {
-        return output;
+    public boolean hasEnoughDstoreMeta() {
+        return !isMerging() && getDstoreMetaCount() >= this.R;
     }
 
     /**
-     * Contains file.
+     * Get LIST reply, shared by all clients until the next store or remove.
      * 
-     * @param filename
      * @return
      */
-    public boolean containsFile(String filename) {
-        return fileMeta.containsKey(filename);
+    public String getListResponse() {
+        return listView.getResponse();
     }
-    
+
     /**
-     * Get file meta.
+     * Get LIST_PAGE reply.
+     * 
+     * @param listPage
+     * @return
+     */
+    public String getListPage(ListPage listPage) {
+        return listView.getPage(listPage);
+    }
+
+    /**
+     * Contains file.
      * 
      * @param filename
      * @return
      */
-    public FileMeta getFileMeta(String filename) {
-        return fileMeta.get(filename);
+    public boolean containsFile(String filename) {
+        return this.fileMeta.containsKey(filename);
     }
 
     /**
      * Add file meta.
      * 
      * @param fileMeta
+     * @return
      */
-    public void addFileMeta(FileMeta fileMeta) {
-        this.fileMeta.put(fileMeta.getFilename(), fileMeta);
+    public boolean addFileMeta(FileMeta fileMeta) {
+        // Erasure coding needs a dstore per shard, without them files are replicated.
+        if (dataShards > 0 && fileMeta.getFilesize() >= erasureMin && getDstoreMetaCount() >= dataShards + parityShards) {
+            fileMeta.makeShards(dataShards, parityShards);
+        } else if (stripeSize > 0 && fileMeta.getFilesize() > stripeSize) {
+            fileMeta.makeStripes(stripeSize);
+        }
+        rebalanceLock.readLock().lock();
+        boolean ret = reserveFilename(fileMeta);
+        if (ret) {
+            for (int i = 0; i < fileMeta.getStripes().size(); i++) {
+                if (!reserveFilename(fileMeta.getStripes().get(i))) {
+                    for (int j = 0; j < i; j++) {
+                        FileMeta stripe = fileMeta.getStripes().get(j);
+                        this.fileMeta.remove(stripe.getFilename(), stripe);
+                    }
+                    this.fileMeta.remove(fileMeta.getFilename(), fileMeta);
+                    ret = false;
+                    break;
+                }
+            }
+        }
+        rebalanceLock.readLock().unlock();
+        return ret;
     }
 
     /**
-     * Remove file meta.
+     * Cancel file meta added for a STORE that could not be placed, releasing
+     * the room reserved for it.
      * 
-     * @param filename
+     * @param fileMeta
      */
-    public void removeFileMeta(String filename) {
-        FileMeta fileMeta = this.fileMeta.get(filename);
-        if (fileMeta != null) {
-            fileMeta.removeDstoreMeta(this);
+    public void cancelFileMeta(FileMeta fileMeta) {
+        rebalanceLock.readLock().lock();
+        for (FileMeta stripe: fileMeta.getStripes()) {
+            this.fileMeta.remove(stripe.getFilename(), stripe);
+        }
+        this.fileMeta.remove(fileMeta.getFilename(), fileMeta);
+        for (DstoreMeta dstoreMeta: dStoreMeta.values()) {
+            dstoreMeta.release(fileMeta);
+            for (FileMeta stripe: fileMeta.getStripes()) {
+                dstoreMeta.release(stripe);
+            }
         }
-        this.fileMeta.remove(filename);
+        rebalanceLock.readLock().unlock();
     }
 
     /**
-     * Get all filename.
+     * Reserve filename for a new file, replacing an entry whose removal has
+     * completed.
      * 
+     * @param fileMeta
      * @return
      */
-    public ArrayList<String> getAllFilename() {
-        ArrayList<String> filenames = new ArrayList<>();
-        for (String filename: fileMeta.keySet()) {
-            filenames.add(filename);
+    private boolean reserveFilename(FileMeta fileMeta) {
+        while (true) {
+            FileMeta old = this.fileMeta.putIfAbsent(fileMeta.getFilename(), fileMeta);
+            if (old == null) {
+                return true;
+            }
+            if (old.getStatus() != Status.REMOVE_COMPLETE) {
+                return false;
+            }
+            if (this.fileMeta.replace(fileMeta.getFilename(), old, fileMeta)) {
+                return true;
+            }
         }
-        return filenames;
     }
 
     /**
-     * Get file count.
+     * Is stripe of a striped file.
      * 
+     * @param filename
      * @return
      */
-    public int getFileCount() {
-        return fileMeta.size();
+    public boolean isStripe(String filename) {
+        FileMeta fileMeta = getFileMeta(filename);
+        return fileMeta != null && fileMeta.getParent() != null;
     }
 
-    @Override
-    public int compareTo(DstoreMeta o) {
-        return this.fileMeta.size() - o.fileMeta.size();
+    /**
+     * Get stripe names of a file, empty if the file is not striped.
+     * 
+     * @param filename
+     * @return
+     */
+    public ArrayList<String> getStripeNames(String filename) {
+        ArrayList<String> names = new ArrayList<>();
+        FileMeta fileMeta = this.fileMeta.get(filename);
+        if (fileMeta != null) {
+            for (FileMeta stripe: fileMeta.getStripes()) {
+                names.add(stripe.getFilename());
+            }
+        }
+        return names;
     }
-};
 
-/**
- * Class controller.
- */
-public class Controller {
+    /**
+     * Get file meta.
+     * 
+     * @param fileName
+     * @return
+     */
+    public FileMeta getFileMeta(String fileName) {
+        return this.fileMeta.get(fileName);
+    }
 
-    private int cport;
-    private int R;
-    private int timeout;
-    private int rebalancePeriod;
+    /**
+     * Get dstore meta ports, the dstores storing the fewest bytes among
+     * those with room for the file, one per replica still missing. Dstores
+     * already holding a replica, as one linked by a partial LINK, are
+     * skipped and count toward R.
+     * 
+     * @param file
+     * @return null if too few dstores have room
+     */
+    public String getDstoreMetaPorts(FileMeta file) {
+        ArrayList<DstoreMeta> held = new ArrayList<>(file.getDStoreMeta());
+        ArrayList<DstoreMeta> DstoreMetaList = selectDstores(file.getFilename(), R + held.size(), file.getFilesize());
+        DstoreMetaList.removeAll(held);
+        int missing = Math.max(R - held.size(), 0);
+        if (missing == 0 || DstoreMetaList.size() < missing) {
+            return null;
+        }
+        reserve(file, DstoreMetaList.subList(0, missing));
+        StringBuilder stringBuilder = new StringBuilder();
+        for (DstoreMeta dstoreMeta: DstoreMetaList.subList(0, missing)) {
+            stringBuilder.append(dstoreMeta.getPort());
+            stringBuilder.append(" ");
+        }
+        return stringBuilder.toString().trim();
+    }
 
-    private HashMap<String, FileMeta> fileMeta;
-    private HashMap<Integer, DstoreMeta> dStoreMeta;
-    private HashMap<Integer, Integer> portMap;
-    private ReadWriteLock readWriteLock;
+    /**
+     * Get R connected dstores holding a stored file with the content of a
+     * new one, which they can link instead of receiving it again.
+     * 
+     * @param file
+     * @param digest
+     * @return null if no file with the digest has R connected replicas
+     */
+    public List<DstoreMeta> getDigestHolders(FileMeta file, String digest) {
+        FileMeta stored = digests.get(digest);
+        if (stored == null || file.isStriped() || file.isErasure() || stored.getStatus() != Status.STORE_COMPLETE
+                || stored.getFilesize() != file.getFilesize()) {
+            return null;
+        }
+        ArrayList<DstoreMeta> holders = new ArrayList<>();
+        for (DstoreMeta dstoreMeta: stored.getDStoreMeta()) {
+            if (holders.size() < R && !dstoreMeta.isClosed()) {
+                holders.add(dstoreMeta);
+            }
+        }
+        return holders.size() < R ? null : holders;
+    }
 
     /**
-     * Constructor.
+     * Get shard ports, k + m distinct dstores, shard i going to the i-th.
      * 
-     * @param cport
-     * @param R
-     * @param timeout
-     * @param rebalancePeriod
+     * @param file
+     * @return null if fewer than k + m dstores have room for a shard
      */
-    public Controller(int cport, int R, int timeout, int rebalancePeriod) {
-        this.cport = cport;
-        this.R = R;
-        this.timeout = timeout;
-        this.rebalancePeriod = rebalancePeriod;
-        this.fileMeta = new HashMap<>();
-        this.dStoreMeta = new HashMap<>();
-        this.portMap = new HashMap<>();
-        this.readWriteLock = new ReentrantReadWriteLock();
+    public String getShardPorts(FileMeta file) {
+        int shards = file.getStripes().size();
+        ArrayList<DstoreMeta> DstoreMetaList = selectDstores(file.getFilename(), shards, file.getStripes().get(0).getFilesize());
+        if (DstoreMetaList.size() < shards) {
+            return null;
+        }
+        for (int i = 0; i < shards; i++) {
+            reserve(file.getStripes().get(i), DstoreMetaList.subList(i, i + 1));
+        }
+        StringBuilder stringBuilder = new StringBuilder();
+        for (DstoreMeta dstoreMeta: DstoreMetaList) {
+            stringBuilder.append(dstoreMeta.getPort());
+            stringBuilder.append(" ");
+        }
+        return stringBuilder.toString().trim();
+    }
 
-        this.handlePeriod();
-        this.handleRequest();
+    /**
+     * Get shard layout of an erasure coded file for SHARDS, naming one
+     * connected holder per shard or 0 for a lost shard.
+     * 
+     * @param file
+     * @return null if fewer than k shards are left
+     */
+    public String getShardLayout(FileMeta file) {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(file.getFilename());
+        stringBuilder.append(" ");
+        stringBuilder.append(file.getFilesize());
+        stringBuilder.append(" ");
+        stringBuilder.append(file.getDataShards());
+        stringBuilder.append(" ");
+        stringBuilder.append(file.getParityShards());
+        int found = 0;
+        for (FileMeta shard: file.getStripes()) {
+            DstoreMeta holder = null;
+            for (DstoreMeta dstoreMeta: shard.getDStoreMeta()) {
+                if (!dstoreMeta.isClosed()) {
+                    holder = dstoreMeta;
+                    break;
+                }
+            }
+            stringBuilder.append(" ");
+            stringBuilder.append(holder == null ? 0 : holder.getPort());
+            if (holder != null) {
+                found++;
+            }
+        }
+        return found < file.getDataShards() ? null : stringBuilder.toString();
     }
 
     /**
-     * Get timeout.
+     * Get connected dstores holding a shard of an erasure coded file.
+     * 
+     * @param file
      * @return
      */
-    public int getTimeout() {
-        return timeout;
+    public ArrayList<DstoreMeta> getShardHolders(FileMeta file) {
+        ArrayList<DstoreMeta> holders = new ArrayList<>();
+        for (FileMeta shard: file.getStripes()) {
+            for (DstoreMeta dstoreMeta: shard.getDStoreMeta()) {
+                if (!dstoreMeta.isClosed() && !holders.contains(dstoreMeta)) {
+                    holders.add(dstoreMeta);
+                }
+            }
+        }
+        return holders;
     }
 
     /**
-     * Add dstore meta.
+     * Get copies a file needs, one for a shard and R for the rest.
      * 
-     * @param dStoreMeta
+     * @param file
+     * @return
      */
-    public void addDstoreMeta(DstoreMeta dStoreMeta) {
-        readWriteLock.writeLock().lock();
-        this.dStoreMeta.put(dStoreMeta.getPort(), dStoreMeta);
-        readWriteLock.writeLock().unlock();
+    private int getCopies(FileMeta file) {
+        return file.isShard() ? 1 : R;
     }
 
     /**
-     * Get dstore meta count.
+     * Holds a sibling shard, so taking this shard too would cost two shards
+     * of the file if the dstore fails.
      * 
+     * @param files held by the dstore
+     * @param file
      * @return
      */
-    public int getDstoreMetaCount() {
-        int count = 0;
-        readWriteLock.readLock().lock();
-        count = this.dStoreMeta.size();
-        readWriteLock.readLock().unlock();
-        return count;
+    private boolean holdsSibling(Set<String> files, FileMeta file) {
+        if (!file.isShard()) {
+            return false;
+        }
+        for (FileMeta shard: file.getParent().getStripes()) {
+            if (shard != file && files.contains(shard.getFilename())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Get dstore meta by port.
+     * Get stripe ports, the reply body of STORE_TO_STRIPED. Stripe i goes to
+     * the R dstores starting at position i among the least loaded ones, so
+     * consecutive stripes land on different dstores. With rendezvous
+     * placement each stripe goes to its own top R dstores instead.
      * 
-     * @param port
-     * @return
+     * @param file
+     * @return null if fewer than R dstores have room for a stripe
      */
-    public DstoreMeta getDStoreMeta(int port) {
-        DstoreMeta dstoreMeta = null;
-        readWriteLock.readLock().lock();
-        dstoreMeta = this.dStoreMeta.get(port);
-        readWriteLock.readLock().unlock();
-        return dstoreMeta;
+    public String getStripePorts(FileMeta file) {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(file.getStripeSize());
+        stringBuilder.append(" ");
+        stringBuilder.append(file.getStripes().size());
+        if (isRendezvous()) {
+            for (FileMeta stripe: file.getStripes()) {
+                ArrayList<DstoreMeta> DstoreMetaList = selectDstores(stripe.getFilename(), R, stripe.getFilesize());
+                if (DstoreMetaList.size() < R) {
+                    return null;
+                }
+                reserve(stripe, DstoreMetaList);
+                for (DstoreMeta dstoreMeta: DstoreMetaList) {
+                    stringBuilder.append(" ");
+                    stringBuilder.append(dstoreMeta.getPort());
+                }
+            }
+            return stringBuilder.toString();
+        }
+        ArrayList<DstoreMeta> DstoreMetaList = placementIndex.selectLeast(file.getStripes().size() + R - 1, file.getStripeSize(), headroom);
+        if (DstoreMetaList.size() < R) {
+            return null;
+        }
+        for (int i = 0; i < file.getStripes().size(); i++) {
+            ArrayList<DstoreMeta> stripeDstores = new ArrayList<>();
+            for (int j = 0; j < R; j++) {
+                stripeDstores.add(DstoreMetaList.get((i + j) % DstoreMetaList.size()));
+                stringBuilder.append(" ");
+                stringBuilder.append(stripeDstores.get(j).getPort());
+            }
+            reserve(file.getStripes().get(i), stripeDstores);
+        }
+        return stringBuilder.toString();
     }
 
     /**
-     * Has enough dstore meta.
+     * Is rendezvous placement.
      * 
      * @return
      */
-    public boolean hasEnoughDstoreMeta() {
-        return getDstoreMetaCount() >= this.R;
+    public boolean isRendezvous() {
+        return placementMode.equals("hrw");
     }
 
     /**
-     * Get all filename.
+     * Select dstores for a file with room for it, the least loaded ones or
+     * the top ranked ones under rendezvous placement.
      * 
-     * @return
+     * @param filename
+     * @param count
+     * @param filesize
+     * @return at most count dstores
      */
-    public String getAllFilename() {
-        StringBuilder stringBuilder = new StringBuilder();
-        readWriteLock.readLock().lock();
-        for (FileMeta file: fileMeta.values()) {
-            if (file.getStatus().equals(Status.STORE_COMPLETE)) {
-                stringBuilder.append(file.getFilename());
-                stringBuilder.append(" ");
+    private ArrayList<DstoreMeta> selectDstores(String filename, int count, long filesize) {
+        if (!isRendezvous()) {
+            return placementIndex.selectLeast(count, filesize, headroom);
+        }
+        ArrayList<DstoreMeta> selected = new ArrayList<>();
+        for (DstoreMeta dstoreMeta: Rendezvous.rank(filename, this.dStoreMeta.values())) {
+            if (selected.size() == count) {
+                break;
+            }
+            if (dstoreMeta.hasRoom(filesize, headroom)) {
+                selected.add(dstoreMeta);
             }
         }
-        readWriteLock.readLock().unlock();
-        return stringBuilder.toString().trim();
+        return selected;
     }
 
     /**
-     * Contains file.
+     * Reserve room for a file on the dstores chosen for it, so STOREs placed
+     * before its acks arrive see the room as taken. Each reservation ends
+     * with the dstore's STORE_ACK, a cancelled STORE, or after the timeout,
+     * taking a STORE not acked by then as abandoned.
      * 
-     * @param filename
-     * @return
+     * @param file
+     * @param dstores
      */
-    public boolean containsFile(String filename) {
-        boolean ret = false;
-        readWriteLock.readLock().lock();
-        if (this.fileMeta.containsKey(filename)) {
-            ret = true;
+    private void reserve(FileMeta file, List<DstoreMeta> dstores) {
+        ArrayList<DstoreMeta> reserved = new ArrayList<>(dstores);
+        for (DstoreMeta dstoreMeta: reserved) {
+            dstoreMeta.reserve(file);
         }
-        readWriteLock.readLock().unlock();
-        return ret;
+        CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS).execute(() -> {
+            for (DstoreMeta dstoreMeta: reserved) {
+                dstoreMeta.release(file);
+            }
+        });
     }
 
     /**
-     * Add file meta.
+     * Select replica for a LOAD by the power of two choices, the less loaded
+     * of two random replicas, so reads of a hot file spread over all of them.
      * 
-     * @param fileMeta
-     * @return
+     * @param file
+     * @param excluded ports already tried
+     * @return null if every replica was tried
      */
-    public boolean addFileMeta(FileMeta fileMeta) {
-        boolean ret = true;
-        readWriteLock.writeLock().lock();
-        if (this.fileMeta.containsKey(fileMeta.getFilename())) {
-            if (this.fileMeta.get(fileMeta.getFilename()).getStatus().equals(Status.REMOVE_COMPLETE)) {
-                this.fileMeta.put(fileMeta.getFilename(), fileMeta);
-            } else {
-                ret = false;
-            }
-        } else {
-            this.fileMeta.put(fileMeta.getFilename(), fileMeta);
-        }
-        readWriteLock.writeLock().unlock();
-        return ret;
+    public DstoreMeta selectReplica(FileMeta file, List<Integer> excluded) {
+        return selectReplica(file.getDStoreMeta(), excluded);
     }
 
     /**
-     * Get file meta.
+     * Select one of the replicas by the power of two choices.
      * 
-     * @param fileName
-     * @return
+     * @param replicas
+     * @param excluded ports already tried
+     * @return null if all were tried
      */
-    public FileMeta getFileMeta(String fileName) {
-        FileMeta fileMeta = null;
-        readWriteLock.readLock().lock();
-        fileMeta = this.fileMeta.get(fileName);
-        readWriteLock.readLock().unlock();
-        return fileMeta;
+    public DstoreMeta selectReplica(List<DstoreMeta> replicas, List<Integer> excluded) {
+        ArrayList<DstoreMeta> candidates = new ArrayList<>();
+        for (DstoreMeta dstoreMeta: replicas) {
+            if (!excluded.contains(dstoreMeta.getPort())) {
+                candidates.add(dstoreMeta);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(candidates.size());
+        DstoreMeta selected = candidates.get(i);
+        if (candidates.size() > 1) {
+            int j = random.nextInt(candidates.size() - 1);
+            DstoreMeta other = candidates.get(j < i ? j : j + 1);
+            if (other.getLoad() < selected.getLoad()) {
+                selected = other;
+            }
+        }
+        selected.addLoad();
+        return selected;
     }
 
     /**
-     * Get dstore meta ports.
+     * Get stripe map, one replica port per stripe, spreading stripes over
+     * replicas so a download pulls from as many dstores as possible.
      * 
-     * @return
+     * @param file
+     * @return null if a stripe has no replica
      */
-    public String getDstoreMetaPorts() {
+    public String getStripeMap(FileMeta file) {
         StringBuilder stringBuilder = new StringBuilder();
-        readWriteLock.readLock().lock();
-        ArrayList<DstoreMeta> DstoreMetaList = new ArrayList<>(dStoreMeta.values());
-        Collections.sort(DstoreMetaList);
-        for (int i = 0; i < R; i++) {
-            stringBuilder.append(DstoreMetaList.get(i).getPort());
+        for (int i = 0; i < file.getStripes().size(); i++) {
+            List<DstoreMeta> replicas = file.getStripes().get(i).getDStoreMeta();
+            if (replicas.size() == 0) {
+                return null;
+            }
+            stringBuilder.append(replicas.get(i % replicas.size()).getPort());
             stringBuilder.append(" ");
         }
-        readWriteLock.readLock().unlock();
         return stringBuilder.toString().trim();
     }
 
@@ -735,9 +3382,7 @@ public class Controller {
      * @param port2
      */
     public void addPortMap(int port1, int port2) {
-        readWriteLock.writeLock().lock();
         portMap.put(port1, port2);
-        readWriteLock.writeLock().unlock();
     }
 
     /**
@@ -747,13 +3392,7 @@ public class Controller {
      * @return
      */
     public int getPortMap(int port) {
-        int p = 0;
-        readWriteLock.readLock().lock();
-        if (portMap.containsKey(port)) {
-            p = portMap.get(port);
-        }
-        readWriteLock.readLock().unlock();
-        return p;
+        return portMap.getOrDefault(port, 0);
     }
 
     /**
@@ -761,25 +3400,178 @@ public class Controller {
      * 
      * @param port
      * @param filename
+     * @param checksum -1 if the ack carried none
+     * @param digest null if the ack carried none
      */
-    public void setStoreFinished(int port, String filename) {
-        readWriteLock.writeLock().lock();
+    public void setStoreFinished(int port, String filename, long checksum, String digest) {
+        rebalanceLock.readLock().lock();
         DstoreMeta dstoreMeta = dStoreMeta.get(port);
         FileMeta fileMeta = this.fileMeta.get(filename);
         if (dstoreMeta != null && fileMeta != null) {
+            if (checksum != -1 && fileMeta.getChecksum() == -1) {
+                fileMeta.setChecksum(checksum);
+            }
+            if (digest != null && fileMeta.getDigest() == null && fileMeta.getParent() == null && !fileMeta.isStriped() && !fileMeta.isErasure()) {
+                fileMeta.setDigest(digest);
+            }
             fileMeta.addDStoreMeta(dstoreMeta);
             dstoreMeta.addFileMeta(fileMeta);
-            if (fileMeta.getRCount() == R) {
-                fileMeta.setStatus(Status.STORE_COMPLETE);
-                System.out.println("File " + filename + " store complete.");
+            dstoreMeta.release(fileMeta);
+            FileMeta parent = fileMeta.getParent();
+            if (fileMeta.getRCount() >= getCopies(fileMeta)) {
+                // Stripes are logged with their file, so only the file waits for the log.
+                if (parent == null) {
+                    if (fileMeta.compareAndSetStatus(Status.STORE_IN_PROGRESS, Status.STORE_LOGGING)) {
+                        commitStoreComplete(fileMeta);
+                    }
+                } else if (fileMeta.compareAndSetStatus(Status.STORE_IN_PROGRESS, Status.STORE_COMPLETE) && parent.allStripesComplete()
+                        && parent.compareAndSetStatus(Status.STORE_IN_PROGRESS, Status.STORE_LOGGING)) {
+                    commitStoreComplete(parent);
+                }
+            }
+        }
+        rebalanceLock.readLock().unlock();
+    }
+
+    /**
+     * Set shards of a coded STORE lost, sent to no dstore. With at least k
+     * shards left the file is stored and the lost ones count as complete
+     * with no holder, so the next rebalance rebuilds them. With fewer it
+     * cannot be decoded, and the STORE fails.
+     * 
+     * @param filename
+     * @param lost
+     */
+    public void setShardsLost(String filename, ArrayList<Integer> lost) {
+        rebalanceLock.readLock().lock();
+        try {
+            FileMeta fileMeta = this.fileMeta.get(filename);
+            if (fileMeta == null || !fileMeta.isErasure() || fileMeta.getStatus() != Status.STORE_IN_PROGRESS) {
+                return;
+            }
+            if (lost.size() > fileMeta.getParityShards()) {
+                cancelFileMeta(fileMeta);
                 PrintWriter printWriter = fileMeta.getPrintWriter();
                 if (printWriter != null) {
-                    printWriter.println(Protocol.STORE_COMPLETE_TOKEN);
+                    printWriter.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
                     printWriter.flush();
                 }
+                return;
+            }
+            for (int index: lost) {
+                if (index >= 0 && index < fileMeta.getStripes().size()) {
+                    fileMeta.getStripes().get(index).compareAndSetStatus(Status.STORE_IN_PROGRESS, Status.STORE_COMPLETE);
+                }
+            }
+            if (fileMeta.allStripesComplete() && fileMeta.compareAndSetStatus(Status.STORE_IN_PROGRESS, Status.STORE_LOGGING)) {
+                commitStoreComplete(fileMeta);
+            }
+        } finally {
+            rebalanceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adopt replica advertised by a restarted dstore, if it is a complete
+     * copy of a stored file.
+     * 
+     * @param dstoreMeta
+     * @param filename
+     * @param filesize
+     * @param checksum
+     * @return null if the file is still being stored, false if the copy is stale
+     */
+    public Boolean adoptReplica(DstoreMeta dstoreMeta, String filename, long filesize, long checksum) {
+        rebalanceLock.readLock().lock();
+        try {
+            if (isMerging()) {
+                mergeReplica(dstoreMeta, filename, filesize, checksum);
+                return true;
+            }
+            FileMeta fileMeta = this.fileMeta.get(filename);
+            if (fileMeta != null && (fileMeta.getStatus() == Status.STORE_IN_PROGRESS || fileMeta.getStatus() == Status.STORE_LOGGING)) {
+                return null;
+            }
+            if (fileMeta == null || fileMeta.getStatus() != Status.STORE_COMPLETE || fileMeta.isStriped() || fileMeta.getFilesize() != filesize
+                    || (fileMeta.getChecksum() != -1 && fileMeta.getChecksum() != checksum)) {
+                return false;
+            }
+            if (fileMeta.getChecksum() == -1) {
+                fileMeta.setChecksum(checksum);
+            }
+            fileMeta.addDStoreMeta(dstoreMeta);
+            dstoreMeta.addFileMeta(fileMeta);
+            return true;
+        } finally {
+            rebalanceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Commit store complete. The file stays STORE_LOGGING, not loadable,
+     * until the log has it, so nothing is published a crash could lose.
+     * Publishing and telling the client run off the log's writer thread, a
+     * slow client must not hold up later commits.
+     * 
+     * @param fileMeta
+     */
+    private void commitStoreComplete(FileMeta fileMeta) {
+        if (metaLog == null) {
+            publishStoreComplete(fileMeta);
+            notifyStoreComplete(fileMeta);
+            return;
+        }
+        metaLog.append(getStoreRecord(fileMeta)).whenCompleteAsync((result, e) -> {
+            if (e != null) {
+                System.out.println("File " + fileMeta.getFilename() + " not logged, store cancelled.");
+                cancelFileMeta(fileMeta);
+                return;
+            }
+            publishStoreComplete(fileMeta);
+            notifyStoreComplete(fileMeta);
+        }, Threads::start);
+    }
+
+    /**
+     * Publish store complete, making the logged file STORE_COMPLETE, adding
+     * it to LIST and its content to the digest index. A REMOVE begun while
+     * it was being logged keeps it unpublished. One racing the publish
+     * unpublishes it after its status changes, so a file seen removed here
+     * is taken back out.
+     * 
+     * @param fileMeta
+     */
+    private void publishStoreComplete(FileMeta fileMeta) {
+        if (!fileMeta.compareAndSetStatus(Status.STORE_LOGGING, Status.STORE_COMPLETE)) {
+            return;
+        }
+        String filename = fileMeta.getFilename();
+        listView.add(filename);
+        if (fileMeta.getDigest() != null) {
+            digests.put(fileMeta.getDigest(), fileMeta);
+        }
+        if (fileMeta.getStatus() != Status.STORE_COMPLETE) {
+            if (this.fileMeta.get(filename) == null || this.fileMeta.get(filename) == fileMeta) {
+                listView.remove(filename);
+            }
+            if (fileMeta.getDigest() != null) {
+                digests.remove(fileMeta.getDigest(), fileMeta);
             }
         }
-        readWriteLock.writeLock().unlock();
+    }
+
+    /**
+     * Notify store complete.
+     * 
+     * @param fileMeta
+     */
+    private void notifyStoreComplete(FileMeta fileMeta) {
+        System.out.println("File " + fileMeta.getFilename() + " store complete.");
+        PrintWriter printWriter = fileMeta.getPrintWriter();
+        if (printWriter != null) {
+            printWriter.println(Protocol.STORE_COMPLETE_TOKEN);
+            printWriter.flush();
+        }
     }
 
     /**
@@ -790,19 +3582,25 @@ public class Controller {
      */
     public ArrayList<Integer> prepareRemoveFile(String filename) {
         ArrayList<Integer> ports = new ArrayList<>();
-        readWriteLock.writeLock().lock();
         FileMeta fileMeta = this.fileMeta.get(filename);
         if (fileMeta != null) {
-            if (fileMeta.getStatus().equals(Status.REMOVE_IN_PROGRESS)) {
-                readWriteLock.writeLock().unlock();
-                return null;
+            while (true) {
+                Status status = fileMeta.getStatus();
+                if (status == Status.REMOVE_IN_PROGRESS || status == Status.REMOVE_COMPLETE) {
+                    return null;
+                }
+                if (fileMeta.compareAndSetStatus(status, Status.REMOVE_IN_PROGRESS)) {
+                    listView.remove(filename);
+                    if (fileMeta.getDigest() != null) {
+                        digests.remove(fileMeta.getDigest(), fileMeta);
+                    }
+                    break;
+                }
             }
-            fileMeta.setStatus(Status.REMOVE_IN_PROGRESS);
             for (DstoreMeta dstoreMeta: fileMeta.getDStoreMeta()) {
                 ports.add(dstoreMeta.getPort());
             }
         }
-        readWriteLock.writeLock().unlock();
         return ports;
     }
 
@@ -810,16 +3608,23 @@ public class Controller {
      * Finished remove file.
      * 
      * @param filename
+     * @return completed once the removal is logged
      */
-    public void finishedRemoveFile(String filename) {
-        readWriteLock.writeLock().lock();
+    public CompletableFuture<Void> finishedRemoveFile(String filename) {
+        CompletableFuture<Void> logged = metaLog == null ? CompletableFuture.completedFuture(null) : metaLog.append("R " + filename);
+        rebalanceLock.readLock().lock();
         FileMeta fileMeta = this.fileMeta.get(filename);
         if (fileMeta != null) {
             fileMeta.setStatus(Status.REMOVE_COMPLETE);
             System.out.println("File " + filename + " remove complete.");
-            this.fileMeta.remove(filename);
+            this.fileMeta.remove(filename, fileMeta);
+            for (FileMeta stripe: fileMeta.getStripes()) {
+                stripe.setStatus(Status.REMOVE_COMPLETE);
+                this.fileMeta.remove(stripe.getFilename(), stripe);
+            }
         }
-        readWriteLock.writeLock().unlock();
+        rebalanceLock.readLock().unlock();
+        return logged;
     }
 
     /**
@@ -829,276 +3634,541 @@ public class Controller {
      * @param filename
      */
     public void removeFileFromDstore(int port, String filename) {
-        readWriteLock.writeLock().lock();
+        rebalanceLock.readLock().lock();
         DstoreMeta dstoreMeta = this.dStoreMeta.get(port);
         if (dstoreMeta != null) {
             dstoreMeta.removeFileMeta(filename);
         }
-        readWriteLock.writeLock().unlock();
+        rebalanceLock.readLock().unlock();
     }
 
     /**
-     * Rebalance.
+     * Rebalance. Plans from a snapshot of the index and runs the transfers
+     * with no lock held, then commits the new placement in one short step,
+     * so client operations keep flowing meanwhile.
      */
     public void rebalance() {
-        readWriteLock.writeLock().lock();
-        HashMap<DstoreMeta, ArrayList<String> > data = new HashMap<>();
-        ArrayList<DstoreMeta> badDstore = new ArrayList<>();
-        for (DstoreMeta dstoreMeta: this.dStoreMeta.values()) {
-            try {
-                data.put(dstoreMeta, new ArrayList<>());
-                Socket socket = new Socket();
-                socket.connect(new InetSocketAddress("127.0.0.1", dstoreMeta.getPort()), timeout);
-                BufferedReader dinput = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter doutput = new PrintWriter(socket.getOutputStream());
-                doutput.println(Protocol.LIST_TOKEN);
-                doutput.flush();
-                String response = dinput.readLine();
-                if (response.startsWith(Protocol.LIST_TOKEN)) {
-                    String[] files = response.split(" ");
-                    for (int i = 1; i < files.length; i++) {
-                        data.get(dstoreMeta).add(files[i]);
-                    }
+        if (isMerging()) {
+            // The inventories are still coming in, rebalance once merged.
+            return;
+        }
+        rebalanceMutex.lock();
+        try {
+            // Snapshot before inventory, so every snapshot file had all its acks before LIST.
+            HashMap<String, FileMeta> snapshot = getFileSnapshot();
+            HashMap<DstoreMeta, HashSet<String> > data = new HashMap<>();
+            ArrayList<DstoreMeta> badDstore = new ArrayList<>();
+            long deadline = System.currentTimeMillis() + timeout;
+            requestInventory(data, badDstore, deadline);
+
+            // Make rebalance plan.
+            RebalancePlan plan = new RebalancePlan();
+            HashMap<DstoreMeta, HashSet<String> > placement = makePlacement(data, snapshot);
+            HashMap<DstoreMeta, Long> load = makeLoad(placement, snapshot);
+            HashMap<DstoreMeta, Long> incoming = new HashMap<>();
+            makeRepairPlan(plan, placement, snapshot, load, incoming);
+            if (isRendezvous()) {
+                makeRendezvousPlan(plan, data, placement, snapshot, incoming);
+            } else {
+                makeSendPlan(plan, placement, snapshot, load, incoming);
+                makeMovePlan(plan, data, placement, snapshot, load, incoming);
+            }
+
+            // Send plan.
+            HashMap<DstoreMeta, CompletableFuture<String> > results = new HashMap<>();
+            for (DstoreMeta dstoreMeta: plan.getDstores()) {
+                results.put(dstoreMeta, dstoreMeta.request(plan.getCommand(dstoreMeta)));
+            }
+            deadline = System.currentTimeMillis() + timeout;
+            ArrayList<DstoreMeta> done = new ArrayList<>();
+            for (Entry<DstoreMeta, CompletableFuture<String> > entry: results.entrySet()) {
+                if (Protocol.REBALANCE_COMPLETE_TOKEN.equals(awaitReply(entry.getValue(), deadline))) {
+                    done.add(entry.getKey());
                 }
-                dinput.close();
-                doutput.close();
-                socket.close();
-            } catch (Exception e) {
-                badDstore.add(dstoreMeta);
             }
-        }
+            runRepairs(plan);
 
-        // Remove bad Dstore.
-        for (DstoreMeta dstoreMeta: badDstore) {
-            this.dStoreMeta.remove(dstoreMeta.getPort());
+            // Commit and clean up copies of files removed meanwhile.
+            HashMap<DstoreMeta, ArrayList<String> > stale = reconcile(snapshot, data, badDstore, plan, done);
+            for (Entry<DstoreMeta, ArrayList<String> > entry: stale.entrySet()) {
+                for (String filename: entry.getValue()) {
+                    PrintWriter doutput = entry.getKey().getOutput();
+                    doutput.println(Protocol.REMOVE_TOKEN + " " + filename);
+                    doutput.flush();
+                }
+            }
+        } finally {
+            rebalanceMutex.unlock();
         }
+    }
 
-        // Make rebalance plan.
-        HashMap<DstoreMeta, ArrayList<String> > plan = getCurrentStorageFiles();
-        HashMap<String, Integer> fileReplecation = checkFileReplication(data);
-        boolean change = true;
-        while (change) {
-            change = makeSendPlan(plan, fileReplecation);
-            String filename = makeRemovePlan(plan);
-            if (!filename.equals("")) {
-                change = false;
-                fileReplecation = new HashMap<>();
-                fileReplecation.put(filename, 1);
+    /**
+     * Get stored files, by name.
+     * 
+     * @return
+     */
+    private HashMap<String, FileMeta> getFileSnapshot() {
+        HashMap<String, FileMeta> snapshot = new HashMap<>();
+        for (FileMeta file: this.fileMeta.values()) {
+            if (file.getStatus() == Status.STORE_COMPLETE && !file.isStriped() && !file.isErasure()) {
+                snapshot.put(file.getFilename(), file);
             }
         }
+        return snapshot;
+    }
 
-        // Convert rebalance plan to command.
-        HashMap<DstoreMeta, String> commandPlan = makeCommandPlan(plan);
+    /**
+     * Wait for a reply until the deadline shared by the whole fan-out.
+     * 
+     * @param reply
+     * @param deadline
+     * @return null on timeout or failure
+     */
+    private String awaitReply(CompletableFuture<String> reply, long deadline) {
+        try {
+            return reply.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
-        // Send plan.
-        for (DstoreMeta dstoreMeta: commandPlan.keySet()) {
-            try {
-                Socket socket = new Socket();
-                socket.connect(new InetSocketAddress("127.0.0.1", dstoreMeta.getPort()), timeout);
-                BufferedReader dinput = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter doutput = new PrintWriter(socket.getOutputStream());
-                String command = commandPlan.get(dstoreMeta);
-                doutput.println(command);
-                doutput.flush();
-                String response = dinput.readLine();
-                if (response.equals(Protocol.REBALANCE_COMPLETE_TOKEN)) {
-                    String[] parts = command.split(" ");
-                    int num = 1;
-                    int numberToSend = Integer.valueOf(parts[num++]);
-                    for (int i = 0; i < numberToSend; i++) {
-                        String filename = parts[num++];
-                        int portToSend = Integer.valueOf(parts[num++]);
-                        for (int j = 0; j < portToSend; j++) {
-                            int dport = Integer.valueOf(parts[num++]);
-                            this.dStoreMeta.get(dport).addFileMeta(this.fileMeta.get(filename));
-                        }
-                    }
-                    int numberToRemove = Integer.valueOf(parts[num++]);
-                    for (int i = 0; i < numberToRemove; i++) {
-                        String filename = parts[num++];
-                        dstoreMeta.removeFileMeta(filename);
-                    }
+    /**
+     * Request the inventory of every dstore in LIST_PAGE pages. Each round
+     * asks all dstores with pages left for their next one, and all rounds
+     * share the deadline.
+     * 
+     * @param data
+     * @param badDstore
+     * @param deadline
+     */
+    private void requestInventory(HashMap<DstoreMeta, HashSet<String> > data, ArrayList<DstoreMeta> badDstore, long deadline) {
+        ListPage listPage = new ListPage(ListPage.MAX_LIMIT, "", null);
+        HashMap<DstoreMeta, CompletableFuture<String> > pages = new HashMap<>();
+        for (DstoreMeta dstoreMeta: this.dStoreMeta.values()) {
+            data.put(dstoreMeta, new HashSet<>());
+            pages.put(dstoreMeta, dstoreMeta.request(listPage.getRequest()));
+        }
+        while (!pages.isEmpty()) {
+            HashMap<DstoreMeta, CompletableFuture<String> > next = new HashMap<>();
+            for (Entry<DstoreMeta, CompletableFuture<String> > entry: pages.entrySet()) {
+                DstoreMeta dstoreMeta = entry.getKey();
+                String reply = awaitReply(entry.getValue(), deadline);
+                if (!ListPage.isReply(reply)) {
+                    data.remove(dstoreMeta);
+                    badDstore.add(dstoreMeta);
+                    continue;
+                }
+                data.get(dstoreMeta).addAll(ListPage.getNames(reply));
+                String request = listPage.getNextRequest(reply);
+                if (request != null) {
+                    next.put(dstoreMeta, dstoreMeta.request(request));
                 }
-                dinput.close();
-                doutput.close();
-                socket.close();
-            } catch (Exception e) {
-                e.printStackTrace();
             }
+            pages = next;
         }
+    }
 
-        readWriteLock.writeLock().unlock();
+    /**
+     * Make placement, the stored files each live dstore actually holds.
+     * 
+     * @param data
+     * @param snapshot
+     * @return
+     */
+    private HashMap<DstoreMeta, HashSet<String> > makePlacement(HashMap<DstoreMeta, HashSet<String> > data, HashMap<String, FileMeta> snapshot) {
+        HashMap<DstoreMeta, HashSet<String> > placement = new HashMap<>();
+        for (Entry<DstoreMeta, HashSet<String> > entry: data.entrySet()) {
+            HashSet<String> files = new HashSet<>();
+            for (String filename: entry.getValue()) {
+                if (snapshot.containsKey(filename)) {
+                    files.add(filename);
+                }
+            }
+            placement.put(entry.getKey(), files);
+        }
+        return placement;
     }
 
     /**
-     * Get current storage files.
+     * Make load, the bytes of stored files each live dstore holds.
      * 
+     * @param placement
+     * @param snapshot
      * @return
      */
-    private HashMap<DstoreMeta, ArrayList<String> > getCurrentStorageFiles() {
-        HashMap<DstoreMeta, ArrayList<String> > current = new HashMap<>();
-        for (DstoreMeta dstoreMeta: this.dStoreMeta.values()) {
-            current.put(dstoreMeta, dstoreMeta.getAllFilename());
+    private HashMap<DstoreMeta, Long> makeLoad(HashMap<DstoreMeta, HashSet<String> > placement, HashMap<String, FileMeta> snapshot) {
+        HashMap<DstoreMeta, Long> load = new HashMap<>();
+        for (Entry<DstoreMeta, HashSet<String> > entry: placement.entrySet()) {
+            long bytes = 0;
+            for (String filename: entry.getValue()) {
+                bytes += snapshot.get(filename).getFilesize();
+            }
+            load.put(entry.getKey(), bytes);
         }
-        return current;
+        return load;
     }
 
     /**
-     * Check file replication.
+     * Can receive a file, keeping headroom free after what the plan already
+     * sends there.
      * 
-     * @param data
+     * @param dstoreMeta
+     * @param filesize
+     * @param incoming
      * @return
      */
-    private HashMap<String, Integer> checkFileReplication(HashMap<DstoreMeta, ArrayList<String> > data) {
-        HashMap<String, Integer> stat = new HashMap<>();
-        for (ArrayList<String> filenames: data.values()) {
-            for (String filename: filenames) {
-                if (!stat.containsKey(filename)) {
-                    stat.put(filename, 0);
+    private boolean canReceive(DstoreMeta dstoreMeta, long filesize, HashMap<DstoreMeta, Long> incoming) {
+        return dstoreMeta.hasRoom(filesize + incoming.getOrDefault(dstoreMeta, 0L), headroom);
+    }
+
+    /**
+     * Make repair plan, rebuilding each lost shard of an erasure coded file
+     * on the least loaded dstore with room that holds no other shard of it.
+     * Files with fewer than k shards left cannot be repaired.
+     * 
+     * @param plan
+     * @param placement
+     * @param snapshot
+     * @param load
+     * @param incoming
+     */
+    private void makeRepairPlan(RebalancePlan plan, HashMap<DstoreMeta, HashSet<String> > placement, HashMap<String, FileMeta> snapshot,
+            HashMap<DstoreMeta, Long> load, HashMap<DstoreMeta, Long> incoming) {
+        HashSet<FileMeta> parents = new HashSet<>();
+        for (FileMeta file: snapshot.values()) {
+            if (file.isShard() && file.getParent().getStatus() == Status.STORE_COMPLETE) {
+                parents.add(file.getParent());
+            }
+        }
+        for (FileMeta parent: parents) {
+            ArrayList<FileMeta> shards = parent.getStripes();
+            DstoreMeta[] holders = new DstoreMeta[shards.size()];
+            int found = 0;
+            for (int i = 0; i < shards.size(); i++) {
+                for (Entry<DstoreMeta, HashSet<String> > entry: placement.entrySet()) {
+                    if (entry.getValue().contains(shards.get(i).getFilename())) {
+                        holders[i] = entry.getKey();
+                        found++;
+                        break;
+                    }
+                }
+            }
+            if (found == shards.size() || found < parent.getDataShards()) {
+                continue;
+            }
+            StringBuilder layout = new StringBuilder();
+            layout.append(parent.getFilename());
+            layout.append(" ");
+            layout.append(parent.getFilesize());
+            layout.append(" ");
+            layout.append(parent.getDataShards());
+            layout.append(" ");
+            layout.append(parent.getParityShards());
+            for (DstoreMeta holder: holders) {
+                layout.append(" ");
+                layout.append(holder == null ? 0 : holder.getPort());
+            }
+            for (int i = 0; i < shards.size(); i++) {
+                FileMeta shard = shards.get(i);
+                if (holders[i] != null) {
+                    continue;
                 }
-                stat.put(filename, stat.get(filename) + 1);
+                DstoreMeta best = null;
+                for (Entry<DstoreMeta, HashSet<String> > candidate: placement.entrySet()) {
+                    if (!holdsSibling(candidate.getValue(), shard) && canReceive(candidate.getKey(), shard.getFilesize(), incoming)) {
+                        if (best == null || load.get(candidate.getKey()) < load.get(best)) {
+                            best = candidate.getKey();
+                        }
+                    }
+                }
+                if (best == null) {
+                    break;
+                }
+                placement.get(best).add(shard.getFilename());
+                load.merge(best, shard.getFilesize(), Long::sum);
+                incoming.merge(best, shard.getFilesize(), Long::sum);
+                plan.addRepair(best, shard.getFilename(), Protocol.REPAIR_TOKEN + " " + i + " " + layout);
+            }
+        }
+    }
+
+    /**
+     * Run repairs of the plan, each target rebuilding its shards at once.
+     * 
+     * @param plan
+     */
+    private void runRepairs(RebalancePlan plan) {
+        HashMap<String, CompletableFuture<String> > results = new HashMap<>();
+        HashMap<String, DstoreMeta> targets = new HashMap<>();
+        for (Entry<DstoreMeta, LinkedHashMap<String, String> > entry: plan.getRepairs().entrySet()) {
+            for (Entry<String, String> repair: entry.getValue().entrySet()) {
+                results.put(repair.getKey(), entry.getKey().request(repair.getValue()));
+                targets.put(repair.getKey(), entry.getKey());
             }
         }
-        HashMap<String, Integer> result = new HashMap<>();
-        for (Entry<String, Integer> entry: stat.entrySet()) {
-            if (entry.getValue() < R) {
-                result.put(entry.getKey(), R - entry.getValue());
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Entry<String, CompletableFuture<String> > entry: results.entrySet()) {
+            if ((Protocol.REPAIR_COMPLETE_TOKEN + " " + entry.getKey()).equals(awaitReply(entry.getValue(), deadline))) {
+                plan.setRepaired(targets.get(entry.getKey()), entry.getKey());
             }
         }
-        return result;
     }
 
     /**
-     * Make sending plan.
+     * Make sending plan, copying every file with fewer than R replicas to the
+     * dstores storing the fewest bytes that lack it and have room for it.
      * 
      * @param plan
-     * @param fileReplecation
-     * @return
+     * @param placement
+     * @param snapshot
+     * @param load
+     * @param incoming
      */
-    private boolean makeSendPlan(HashMap<DstoreMeta, ArrayList<String> > plan, HashMap<String, Integer> fileReplecation) {
-        boolean change = false;
-        for (Entry<String, Integer> entry: fileReplecation.entrySet()) {
+    private void makeSendPlan(RebalancePlan plan, HashMap<DstoreMeta, HashSet<String> > placement, HashMap<String, FileMeta> snapshot,
+            HashMap<DstoreMeta, Long> load, HashMap<DstoreMeta, Long> incoming) {
+        HashMap<String, ArrayList<DstoreMeta> > holders = new HashMap<>();
+        for (Entry<DstoreMeta, HashSet<String> > entry: placement.entrySet()) {
+            for (String filename: entry.getValue()) {
+                holders.computeIfAbsent(filename, k -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+        for (Entry<String, ArrayList<DstoreMeta> > entry: holders.entrySet()) {
             String filename = entry.getKey();
-            int newCount = entry.getValue();
-            for (int count = 0; count < entry.getValue(); count++) {
+            long filesize = snapshot.get(filename).getFilesize();
+            for (int count = entry.getValue().size(); count < getCopies(snapshot.get(filename)); count++) {
                 DstoreMeta best = null;
-                for (DstoreMeta dstoreMeta: plan.keySet()) {
-                    if (!dstoreMeta.containsFile(filename)) {
-                        if (best == null) {
-                            best = dstoreMeta;
-                        } else if (dstoreMeta.getFileCount() < best.getFileCount()) {
-                            best = dstoreMeta;
+                for (Entry<DstoreMeta, HashSet<String> > candidate: placement.entrySet()) {
+                    if (!candidate.getValue().contains(filename) && canReceive(candidate.getKey(), filesize, incoming)) {
+                        if (best == null || load.get(candidate.getKey()) < load.get(best)) {
+                            best = candidate.getKey();
                         }
                     }
                 }
-                if (best != null) {
-                    best.addFileMeta(new FileMeta(filename, -1));
-                    newCount--;
-                    change = true;
+                if (best == null) {
+                    break;
                 }
+                placement.get(best).add(filename);
+                load.merge(best, filesize, Long::sum);
+                incoming.merge(best, filesize, Long::sum);
+                plan.addSend(entry.getValue().get(0), filename, best);
             }
-            fileReplecation.put(filename, newCount);
         }
-        return change;
     }
 
     /**
-     * Make remove plan.
+     * Make move plan, moving files from dstores more than 5% above the mean
+     * stored bytes to the dstore storing the fewest. A file only moves when
+     * it narrows the gap between the two.
      * 
      * @param plan
-     * @return
+     * @param data
+     * @param placement
+     * @param snapshot
+     * @param load
+     * @param incoming
      */
-    private String makeRemovePlan(HashMap<DstoreMeta, ArrayList<String> > plan) {
-        String filename = "";
-        for (Entry<DstoreMeta, ArrayList<String>> entry: plan.entrySet()) {
-            int upper = R * fileMeta.size() / plan.size();
-            if (entry.getValue().size() > upper) {
-                Random random = new Random();
-                int index = random.nextInt(entry.getValue().size());
-                filename = entry.getValue().get(index);
-                entry.getValue().remove(index);
-                return filename;
-            } 
+    private void makeMovePlan(RebalancePlan plan, HashMap<DstoreMeta, HashSet<String> > data, HashMap<DstoreMeta, HashSet<String> > placement,
+            HashMap<String, FileMeta> snapshot, HashMap<DstoreMeta, Long> load, HashMap<DstoreMeta, Long> incoming) {
+        if (placement.isEmpty()) {
+            return;
+        }
+        long total = 0;
+        for (long bytes: load.values()) {
+            total += bytes;
+        }
+        long mean = total / placement.size();
+        long upper = mean + mean / 20;
+        for (int moves = 0; moves < snapshot.size() * R; moves++) {
+            DstoreMeta most = null;
+            DstoreMeta least = null;
+            for (DstoreMeta dstoreMeta: placement.keySet()) {
+                if (most == null || load.get(dstoreMeta) > load.get(most)) {
+                    most = dstoreMeta;
+                }
+                if (least == null || load.get(dstoreMeta) < load.get(least)) {
+                    least = dstoreMeta;
+                }
+            }
+            long gap = load.get(most) - load.get(least);
+            if (load.get(most) <= upper) {
+                return;
+            }
+            // Only files already on disk there can move, never one still arriving.
+            // The best one leaves the two dstores closest to even.
+            String best = null;
+            long bestSize = 0;
+            for (String filename: placement.get(most)) {
+                long filesize = snapshot.get(filename).getFilesize();
+                if (filesize < gap && data.get(most).contains(filename) && !placement.get(least).contains(filename)
+                        && !holdsSibling(placement.get(least), snapshot.get(filename)) && canReceive(least, filesize, incoming)) {
+                    if (best == null || Math.abs(gap - 2 * filesize) < Math.abs(gap - 2 * bestSize)) {
+                        best = filename;
+                        bestSize = filesize;
+                    }
+                }
+            }
+            if (best == null) {
+                return;
+            }
+            placement.get(most).remove(best);
+            placement.get(least).add(best);
+            load.merge(most, -bestSize, Long::sum);
+            load.merge(least, bestSize, Long::sum);
+            incoming.merge(least, bestSize, Long::sum);
+            plan.addSend(most, best, least);
+            plan.addRemove(most, best);
         }
-        return filename;
     }
 
     /**
-     * Make command plan.
+     * Make rendezvous plan, placing every file on its top R ranked live
+     * dstores with room for it. Copies come from a holder leaving the set
+     * when there is one, which then drops its copy after sending.
      * 
      * @param plan
-     * @return
+     * @param data
+     * @param placement
+     * @param snapshot
+     * @param incoming
      */
-    private HashMap<DstoreMeta, String> makeCommandPlan(HashMap<DstoreMeta, ArrayList<String> > plan) {
-        // Sending plan.
-        HashMap<DstoreMeta, HashMap<String, String> > fileToSend = new HashMap<>();
-        for (DstoreMeta dstoreMeta: plan.keySet()) {
-            fileToSend.put(dstoreMeta, new HashMap<>());
+    private void makeRendezvousPlan(RebalancePlan plan, HashMap<DstoreMeta, HashSet<String> > data, HashMap<DstoreMeta, HashSet<String> > placement,
+            HashMap<String, FileMeta> snapshot, HashMap<DstoreMeta, Long> incoming) {
+        HashMap<String, ArrayList<DstoreMeta> > holders = new HashMap<>();
+        for (Entry<DstoreMeta, HashSet<String> > entry: placement.entrySet()) {
+            for (String filename: entry.getValue()) {
+                holders.computeIfAbsent(filename, k -> new ArrayList<>()).add(entry.getKey());
+            }
         }
-        for (DstoreMeta dstoreMeta: plan.keySet()) {
-            for (String filename: dstoreMeta.getAllFilename()) {
-                FileMeta fileMeta = dstoreMeta.getFileMeta(filename);
-                if (fileMeta.getFilesize() == -1) {
-                    for (DstoreMeta dstoreMeta1: plan.keySet()) {
-                        if (!dstoreMeta1.equals(dstoreMeta) && dstoreMeta1.containsFile(filename)) {
-                            HashMap<String, String> ports = fileToSend.get(dstoreMeta1);
-                            if (!ports.containsKey(filename)) {
-                                ports.put(filename, "");
-                            }
-                            ports.put(filename, ports.get(filename) + " " + dstoreMeta.getPort());
-                            break;
-                        }
+        for (Entry<String, ArrayList<DstoreMeta> > entry: holders.entrySet()) {
+            String filename = entry.getKey();
+            FileMeta file = snapshot.get(filename);
+            long filesize = file.getFilesize();
+            int copies = getCopies(file);
+            ArrayList<DstoreMeta> current = entry.getValue();
+            ArrayList<DstoreMeta> target = new ArrayList<>();
+            for (DstoreMeta dstoreMeta: Rendezvous.rank(filename, placement.keySet())) {
+                if (target.size() == copies) {
+                    break;
+                }
+                if (current.contains(dstoreMeta) || !holdsSibling(placement.get(dstoreMeta), file) && canReceive(dstoreMeta, filesize, incoming)) {
+                    target.add(dstoreMeta);
+                }
+            }
+            // Only holders with the file on disk can send or give it up.
+            ArrayList<DstoreMeta> leaving = new ArrayList<>();
+            DstoreMeta source = null;
+            for (DstoreMeta dstoreMeta: current) {
+                if (data.get(dstoreMeta).contains(filename)) {
+                    if (!target.contains(dstoreMeta)) {
+                        leaving.add(dstoreMeta);
+                    }
+                    if (source == null || !target.contains(dstoreMeta)) {
+                        source = dstoreMeta;
                     }
                 }
             }
+            if (source == null) {
+                continue;
+            }
+            for (DstoreMeta dstoreMeta: target) {
+                if (!current.contains(dstoreMeta)) {
+                    placement.get(dstoreMeta).add(filename);
+                    incoming.merge(dstoreMeta, filesize, Long::sum);
+                    plan.addSend(source, filename, dstoreMeta);
+                }
+            }
+            if (target.size() == copies) {
+                for (DstoreMeta dstoreMeta: leaving) {
+                    placement.get(dstoreMeta).remove(filename);
+                    plan.addRemove(dstoreMeta, filename);
+                }
+            }
         }
-        // Remove plan.
-        HashMap<DstoreMeta, ArrayList<String> > fileToRemove = new HashMap<>();
-        for (DstoreMeta dstoreMeta: plan.keySet()) {
-            fileToRemove.put(dstoreMeta, new ArrayList<>());
-        }
-        for (DstoreMeta dstoreMeta: this.dStoreMeta.values()) {
+    }
+
+    /**
+     * Commit rebalance to the index. Only placements of files that are still
+     * the same stored file are applied.
+     * 
+     * @param snapshot
+     * @param data
+     * @param badDstore
+     * @param plan
+     * @param done dstores that finished their plan
+     * @return copies made of files removed meanwhile, by dstore
+     */
+    private HashMap<DstoreMeta, ArrayList<String> > reconcile(HashMap<String, FileMeta> snapshot, HashMap<DstoreMeta, HashSet<String> > data,
+            ArrayList<DstoreMeta> badDstore, RebalancePlan plan, ArrayList<DstoreMeta> done) {
+        HashMap<DstoreMeta, ArrayList<String> > stale = new HashMap<>();
+        rebalanceLock.writeLock().lock();
+        // Remove bad Dstore, one that only timed out is left out of this round.
+        for (DstoreMeta dstoreMeta: badDstore) {
+            if (!dstoreMeta.isClosed()) {
+                continue;
+            }
+            this.dStoreMeta.remove(dstoreMeta.getPort(), dstoreMeta);
+            placementIndex.remove(dstoreMeta);
             for (String filename: dstoreMeta.getAllFilename()) {
-                if (!plan.get(dstoreMeta).contains(filename)) {
-                    fileToRemove.get(dstoreMeta).add(filename);
+                dstoreMeta.removeFileMeta(filename);
+            }
+        }
+        // Drop replicas a dstore no longer holds, adopt ones it holds unindexed.
+        for (Entry<DstoreMeta, HashSet<String> > entry: data.entrySet()) {
+            DstoreMeta dstoreMeta = entry.getKey();
+            for (FileMeta file: snapshot.values()) {
+                boolean held = entry.getValue().contains(file.getFilename());
+                if (dstoreMeta.containsFile(file.getFilename()) && !held) {
+                    dstoreMeta.removeFileMeta(file.getFilename());
+                } else if (!dstoreMeta.containsFile(file.getFilename()) && held && this.fileMeta.get(file.getFilename()) == file) {
+                    dstoreMeta.addFileMeta(file);
+                    file.addDStoreMeta(dstoreMeta);
                 }
             }
         }
-        HashMap<DstoreMeta, String> commands = new HashMap<>();
-        for (DstoreMeta dstoreMeta: plan.keySet()) {
-            StringBuilder stringBuilder = new StringBuilder();
-            HashMap<String, String> toSend = fileToSend.get(dstoreMeta);
-            stringBuilder.append(toSend.size());
-            stringBuilder.append(" ");
-            for (Entry<String, String> entry: toSend.entrySet()) {
-                String filename = entry.getKey();
-                stringBuilder.append(filename);
-                stringBuilder.append(" ");
-                int count = entry.getValue().trim().split(" ").length;
-                stringBuilder.append(count);
-                stringBuilder.append(" ");
-                stringBuilder.append(entry.getValue().trim());
-                stringBuilder.append(" ");
+        for (DstoreMeta dstoreMeta: done) {
+            for (Entry<String, ArrayList<DstoreMeta> > entry: plan.getSends(dstoreMeta).entrySet()) {
+                FileMeta file = this.fileMeta.get(entry.getKey());
+                boolean same = file != null && file == snapshot.get(entry.getKey()) && file.getStatus() == Status.STORE_COMPLETE;
+                for (DstoreMeta target: entry.getValue()) {
+                    if (same) {
+                        target.addFileMeta(file);
+                        file.addDStoreMeta(target);
+                    } else {
+                        stale.computeIfAbsent(target, k -> new ArrayList<>()).add(entry.getKey());
+                    }
+                }
             }
-            ArrayList<String> toRemove = fileToRemove.get(dstoreMeta);
-            stringBuilder.append(toRemove.size());
-            for (String filename: toRemove) {
-                stringBuilder.append(" ");
-                stringBuilder.append(filename);
+            for (String filename: plan.getRemoves(dstoreMeta)) {
+                dstoreMeta.removeFileMeta(filename);
             }
-            String command = stringBuilder.toString();
-            command.replace("  ", " ");
-            if (!command.equals("0 0")) {
-                commands.put(dstoreMeta, Protocol.REBALANCE_TOKEN + " " + command);
+        }
+        for (DstoreMeta dstoreMeta: plan.getRepairedDstores()) {
+            for (String shard: plan.getRepaired(dstoreMeta)) {
+                FileMeta file = this.fileMeta.get(shard);
+                if (file != null && file == snapshot.get(shard) && this.dStoreMeta.get(dstoreMeta.getPort()) == dstoreMeta) {
+                    dstoreMeta.addFileMeta(file);
+                    file.addDStoreMeta(dstoreMeta);
+                } else {
+                    stale.computeIfAbsent(dstoreMeta, k -> new ArrayList<>()).add(shard);
+                }
             }
         }
-        return commands;
+        rebalanceLock.writeLock().unlock();
+        return stale;
     }
 
     /**
      * Handle request.
      */
     private void handleRequest() {
+        if (engine.equals("nio")) {
+            try {
+                new NioEngine(this, cport, workers).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
         ServerSocket serverSocket = null;
         try {
             serverSocket = new ServerSocket(cport);
@@ -1106,7 +4176,11 @@ public class Controller {
             while (true) {
                 Socket socket = serverSocket.accept();
                 ClientThread clientThread = new ClientThread(socket, this);
-                clientThread.start();
+                if (Threads.isVirtual()) {
+                    Threads.start(clientThread);
+                } else {
+                    clientThread.start();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -1122,15 +4196,21 @@ public class Controller {
     }
 
     public static void main(String[] args) {
-        if (args.length != 4) {
-            System.out.println("Usage: java Controller <cport> <R> <timeout> <rebalance_period>");
+        if (args.length < 4) {
+            System.out.println("Usage: java Controller <cport> <R> <timeout> <rebalance_period> [--stripe-size=<bytes>] [--headroom=<bytes>] [--placement=load|hrw] [--chain] [--trust-digests] [--erasure=<k>,<m>] [--erasure-min=<bytes>] [--meta-dir=<dir>] [--snapshot-every=<records>] [--cold-start[=<dstores>]] [--cold-start-wait=<ms>] [--engine=thread|nio] [--workers=<n>] [--threads=platform|virtual]");
             return;
         }
         int cport = Integer.valueOf(args[0]);
         int R = Integer.valueOf(args[1]);
         int timeout = Integer.valueOf(args[2]);
         int rebalancePeriod = Integer.valueOf(args[3]);
+        Options options = new Options(args, 4);
+        if (options.has("cold-start") && options.has("erasure")) {
+            System.out.println("--cold-start cannot rebuild erasure coded files from shard names, use --meta-dir with --erasure.");
+            return;
+        }
+        Threads.configure(options);
 
-        new Controller(cport, R, timeout, rebalancePeriod);
+        new Controller(cport, R, timeout, rebalancePeriod, options);
     }
 }
\ No newline at end of file
@@ -1,18 +1,57 @@
 import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Field;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Constroller thread.
@@ -45,7 +84,16 @@ class ControllerThread extends Thread {
             output = new PrintWriter(socket.getOutputStream());
             dstore.setControllerInput(input);
             dstore.setControllerOutput(output);
-            output.println(Protocol.JOIN_TOKEN + " " + dstore.getPort());
+            if (dstore.isPersistent()) {
+                // Re-advertise the files kept across the restart, the controller adopts them as replicas.
+                ArrayList<String> pages = dstore.getAdvertisePages();
+                output.println(Protocol.JOIN_TOKEN + " " + dstore.getPort() + " " + dstore.getSpace() + " " + pages.size());
+                for (String page: pages) {
+                    output.println(page);
+                }
+            } else {
+                output.println(Protocol.JOIN_TOKEN + " " + dstore.getPort() + " " + dstore.getSpace());
+            }
             output.flush();
             while (true) {
                 String command = input.readLine();
@@ -58,14 +106,14 @@ class ControllerThread extends Thread {
                     handleStore(command);
                 } else if (token.equals(Protocol.REBALANCE_STORE_TOKEN)) {
                     handleRebalanceStore(command);
-                } else if (token.equals(Protocol.LOAD_DATA_TOKEN)) {
+                } else if (token.equals(Protocol.LOAD_DATA_TOKEN) || token.equals(Protocol.LOAD_DATA_RANGE_TOKEN)) {
                     handleDataLoad(command);
                 } else if (token.equals(Protocol.REMOVE_TOKEN)) {
                     handleRemove(command);
-                } else if (token.equals(Protocol.LIST_TOKEN)) {
-                    handleList(command);
-                } else if (token.equals(Protocol.REBALANCE_TOKEN)) {
-                    handleRebalance(command);
+                } else if (token.equals(Protocol.REQUEST_TOKEN)) {
+                    handleRequest(command);
+                } else {
+                    handleRequest(null, command);
                 }
             }
         } catch (Exception e) {
@@ -84,289 +132,187 @@ class ControllerThread extends Thread {
             return;
         }
         String filename = tokens[1];
-        int filesize = Integer.valueOf(tokens[2]);
+        long filesize = Long.valueOf(tokens[2]);
         if (filesize < 0) {
             return;
         }
-        fileContent = new FileContent(filename, filesize, dstore.getFileFolder());
+        fileContent = new FileContent(filename, filesize, dstore.getFileFolder(), dstore.getCompression(), dstore.isDedup());
         dstore.addFile(fileContent);
         output.println(Protocol.ACK_TOKEN);
         output.flush();
 
-        fileContent.writeContent(in);
-
-        PrintWriter controllerOutput = dstore.getControllerOutput();
-        controllerOutput.println(Protocol.STORE_ACK_TOKEN + " " + fileContent.getfilename());
-        controllerOutput.flush();
-    }
-
-    private void handleRebalanceStore(String command) {
-        String[] tokens = command.split(" ");
-        if (tokens.length != 3) {
+        if (!fileContent.writeContent(FileTransfer.inputChannel(socket, in))) {
+            dstore.abortFile(fileContent);
             return;
         }
-        String filename = tokens[1];
-        int filesize = Integer.valueOf(tokens[2]);
-        if (filesize < 0) {
+        if (!dstore.completeFile(fileContent)) {
             return;
         }
-        fileContent = new FileContent(filename, filesize, dstore.getFileFolder());
-        dstore.addFile(fileContent);
-        output.println(Protocol.ACK_TOKEN);
-        output.flush();
 
-        fileContent.writeContent(in);
-    }
-
-    /**
-     * Handle command LOAD_DATA
-     * @param command
-     */
-    private void handleDataLoad(String command) {
-        String[] tokens = command.split(" ");
-        if (tokens.length != 2) {
-            return;
-        }
-        String filename = tokens[1];
-        String path = dstore.getFileFolder() + File.separator + filename;
-        try {
-            FileInputStream fis = new FileInputStream(new File(path));
-            OutputStream os = socket.getOutputStream();
-            os.write(fis.readNBytes(this.dstore.getFilesize(filename)));
-            os.flush();
-            os.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        PrintWriter controllerOutput = dstore.getControllerOutput();
+        controllerOutput.println(Protocol.STORE_ACK_TOKEN + " " + fileContent.getfilename() + " " + fileContent.getChecksum()
+                + (fileContent.getBlob() == null ? "" : " " + fileContent.getBlob()));
+        controllerOutput.flush();
     }
 
     /**
-     * Handle command REMOVE.
+     * Handle command REQUEST, answering the request it wraps with a REPLY
+     * echoing its id. REBALANCE and REPAIR transfer files, so they run on a
+     * worker and this thread keeps reading.
      * 
      * @param command
      */
-    private void handleRemove(String command) {
-        String[] tokens = command.split(" ");
-        if (tokens.length != 2) {
+    private void handleRequest(String command) {
+        String[] tokens = command.split(" ", 3);
+        if (tokens.length != 3) {
             return;
         }
-        String filename = tokens[1];
-        String path = dstore.getFileFolder() + File.separator + filename;
-        File file = new File(path);
-        file.delete();
-        if (dstore.removeFile(filename)) {
-            System.out.println("Send to controller: " + Protocol.REMOVE_ACK_TOKEN + " " + filename);
-            output.println(Protocol.REMOVE_ACK_TOKEN + " " + filename);
+        String token = tokens[2].split(" ")[0];
+        if (token.equals(Protocol.REBALANCE_TOKEN) || token.equals(Protocol.REPAIR_TOKEN)) {
+            Threads.start(() -> handleRequest(tokens[1], tokens[2]));
         } else {
-            output.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + filename);
+            handleRequest(tokens[1], tokens[2]);
         }
-        output.flush();
-    }
-
-    /**
-     * Handle command LIST.
-     * 
-     * @param command
-     */
-    private void handleList(String command) {
-        String filenames = dstore.listFile();
-        output.println(Protocol.LIST_TOKEN + " " + filenames);
-        output.flush();
     }
 
     /**
-     * Handle command REBALANCE.
+     * Answer a request, REQUEST_FAILED if it is malformed or fails, so the
+     * controller never waits for it until the timeout.
      * 
+     * @param id null for a request not wrapped in REQUEST, answered bare
      * @param command
      */
-    private void handleRebalance(String command) {
-        String[] parts = command.split(" ");
-        int num = 1;
-        int numberToSend = Integer.valueOf(parts[num++]);
-        for (int i = 0; i < numberToSend; i++) {
-            String filename = parts[num++];
-            int portToSend = Integer.valueOf(parts[num++]);
-            for (int j = 0; j < portToSend; j++) {
-                int dport = Integer.valueOf(parts[num++]);
-                try {
-                    Socket socket = new Socket();
-                    socket.connect(new InetSocketAddress("127.0.0.1", dport), this.dstore.getTimeout());
-                    BufferedReader dinput = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    PrintWriter doutput = new PrintWriter(socket.getOutputStream());
-                    doutput.println(Protocol.REBALANCE_STORE_TOKEN + " " + filename + " " + this.dstore.getFilesize(filename));
-                    doutput.flush();
-                    String response = dinput.readLine();
-                    if (response.startsWith(Protocol.ACK_TOKEN)) {
-                        String path = dstore.getFileFolder() + File.separator + filename;
-                        
-                        FileInputStream fis = new FileInputStream(new File(path));
-                        OutputStream os = socket.getOutputStream();
-                        os.write(fis.readNBytes(this.dstore.getFilesize(filename)));
-                        os.flush();
-                    }
-                    dinput.close();
-                    doutput.close();
-                    socket.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+    private void handleRequest(String id, String command) {
+        String token = command.split(" ")[0];
+        String reply = null;
+        try {
+            if (token.equals(Protocol.LIST_TOKEN)) {
+                reply = handleList(command);
+            } else if (token.equals(Protocol.LIST_PAGE_TOKEN)) {
+                reply = handleListPage(command);
+            } else if (token.equals(Protocol.REBALANCE_TOKEN)) {
+                reply = handleRebalance(command);
+            } else if (token.equals(Protocol.CHAIN_TOKEN)) {
+                reply = handleChain(command);
+            } else if (token.equals(Protocol.CHAIN_CANCEL_TOKEN)) {
+                reply = handleChainCancel(command);
+            } else if (token.equals(Protocol.SHARDS_TOKEN)) {
+                reply = handleShards(command);
+            } else if (token.equals(Protocol.REPAIR_TOKEN)) {
+                reply = handleRepair(command);
+            } else if (token.equals(Protocol.LINK_TOKEN)) {
+                reply = handleLink(command);
+            } else if (id == null) {
+                return;
             }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
-        int numberToRemove = Integer.valueOf(parts[num++]);
-        for (int i = 0; i < numberToRemove; i++) {
-            String filename = parts[num++];
-            this.dstore.removeFile(filename);
+        if (reply == null) {
+            reply = Protocol.REQUEST_FAILED_TOKEN;
         }
-        output.println(Protocol.REBALANCE_COMPLETE_TOKEN);
+        output.println(id == null ? reply : Protocol.REPLY_TOKEN + " " + id + " " + reply);
         output.flush();
     }
-}
-
-/**
- * Class file content.
- */
-class FileContent {
-    private String filename;
-    private int filesize;
-    private FileOutputStream fileOutputStream;
 
     /**
-     * Constructor.
+     * Handle command CHAIN, keeping the ports the client's coming STORE of
+     * the file is forwarded to.
      * 
-     * @param filename
-     * @param filesize
-     * @param fileFolder
+     * @param command
+     * @return reply, null if malformed or past the deadline
      */
-    public FileContent(String filename, int filesize, String fileFolder) {
-        this.filename = filename;
-        this.filesize = filesize;
-        try {
-            this.fileOutputStream = new FileOutputStream(new File(fileFolder + File.separator + filename));
-        } catch (IOException e) {
-            e.printStackTrace();
+    private String handleChain(String command) {
+        String[] tokens = command.split(" ");
+        if (tokens.length < 5) {
+            return null;
+        }
+        String filename = tokens[1];
+        if (!dstore.putChain(filename, Long.valueOf(tokens[2]), Long.valueOf(tokens[3]), Arrays.copyOfRange(tokens, 4, tokens.length))) {
+            return null;
         }
+        return Protocol.CHAIN_ACK_TOKEN + " " + filename;
     }
 
     /**
-     * Get filename.
+     * Handle command CHAIN_CANCEL, dropping the chain of a file the client
+     * was told to store to every dstore itself.
      * 
-     * @return
+     * @param command
+     * @return reply, null if malformed
      */
-    public String getfilename() {
-        return filename;
+    private String handleChainCancel(String command) {
+        String[] tokens = command.split(" ");
+        if (tokens.length != 2) {
+            return null;
+        }
+        dstore.cancelChain(tokens[1]);
+        return Protocol.CHAIN_CANCEL_TOKEN + " " + tokens[1];
     }
 
     /**
-     * Get file size.
+     * Handle command SHARDS, keeping the shard layout of an erasure coded
+     * file for the client's coming STORE or LOAD_DATA of it.
      * 
-     * @return
+     * @param command
+     * @return reply, null if malformed
      */
-    public int getFilesize() {
-        return filesize;
+    private String handleShards(String command) {
+        ShardLayout layout = ShardLayout.parse(command.split(" "), 1, System.currentTimeMillis() + dstore.getTimeout());
+        if (layout == null) {
+            return null;
+        }
+        dstore.putLayout(layout);
+        return Protocol.SHARDS_ACK_TOKEN + " " + layout.getFilename();
     }
 
     /**
-     * Write file content.
+     * Handle command REPAIR, rebuilding a lost shard here from k others.
      * 
-     * @param content
+     * @param command
+     * @return reply, null if malformed
      */
-    public void writeContent(InputStream inputStream) {
-        try {
-            fileOutputStream.write(inputStream.readNBytes(filesize));
-            fileOutputStream.flush();
-            fileOutputStream.close();
+    private String handleRepair(String command) {
+        String[] tokens = command.split(" ");
+        ShardLayout layout = ShardLayout.parse(tokens, 2, 0);
+        if (layout == null) {
+            return null;
+        }
+        int index = Integer.valueOf(tokens[1]);
+        String shard = ReedSolomon.shardName(layout.getFilename(), index);
+        FileContent shardContent = new FileContent(shard, layout.getShardSize(), dstore.getFileFolder(), dstore.getCompression(), dstore.isDedup());
+        dstore.addFile(shardContent);
+        boolean written = false;
+        try (ShardReader shardReader = new ShardReader(layout, index, dstore.getTimeout(), dstore.isWireCompress() ? dstore.getWireReceived() : null)) {
+            written = shardContent.writeContent(shardReader);
         } catch (IOException e) {
             e.printStackTrace();
         }
-    }
-}
-
-/**
- * Store thread.
- */
-class StoreThread extends Thread {
-
-    private Socket socket;
-    private Dstore dstore;
-    private InputStream in;
-    private BufferedReader input;
-    private PrintWriter output;
-    private FileContent fileContent;
-
-    /**
-     * Constructor.
-     * 
-     * @param socket
-     * @param dstore
-     */
-    public StoreThread(Socket socket, Dstore dstore) {
-        this.socket = socket;
-        this.dstore = dstore;
-        this.fileContent = null;
-    }
-
-    @Override
-    public void run() {
-        try {
-            in = socket.getInputStream();
-            input = new BufferedReader(new InputStreamReader(in));
-            output = new PrintWriter(socket.getOutputStream());
-            while (true) {
-                if (input == null) {
-                    return;
-                }
-                String command = input.readLine();
-                if (command == null) {
-                    input.close();
-                    output.close();
-                    return;
-                }
-                System.out.println("Recv from client: " + command);
-                String token = command.split(" ")[0];
-                if (token.equals(Protocol.STORE_TOKEN) || token.equals(Protocol.REBALANCE_STORE_TOKEN)) {
-                    handleStore(command);
-                } else if (token.equals(Protocol.REBALANCE_STORE_TOKEN)) {
-                    handleRebalanceStore(command);
-                } else if (token.equals(Protocol.LOAD_DATA_TOKEN)) {
-                    handleDataLoad(command);
-                } else if (token.equals(Protocol.REMOVE_TOKEN)) {
-                    handleRemove(command);
-                } else if (token.equals(Protocol.LIST_TOKEN)) {
-                    handleList(command);
-                } else if (token.equals(Protocol.REBALANCE_TOKEN)) {
-                    handleRebalance(command);
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (written && dstore.completeFile(shardContent)) {
+            return Protocol.REPAIR_COMPLETE_TOKEN + " " + shard;
         }
+        dstore.abortFile(shardContent);
+        return Protocol.REPAIR_FAILED_TOKEN + " " + shard;
     }
 
     /**
-     * Handle command STORE.
+     * Handle command LINK, storing a file from the blob of content already
+     * here instead of a transfer.
      * 
      * @param command
+     * @return reply, null if malformed
      */
-    private void handleStore(String command) {
+    private String handleLink(String command) {
         String[] tokens = command.split(" ");
-        if (tokens.length != 3) {
-            return;
+        if (tokens.length != 4) {
+            return null;
         }
         String filename = tokens[1];
-        int filesize = Integer.valueOf(tokens[2]);
-        if (filesize < 0) {
-            return;
+        FileContent linked = dstore.linkFile(filename, Long.valueOf(tokens[2]), tokens[3]);
+        if (linked != null) {
+            return Protocol.LINK_ACK_TOKEN + " " + filename + " " + linked.getChecksum();
         }
-        fileContent = new FileContent(filename, filesize, dstore.getFileFolder());
-        dstore.addFile(fileContent);
-        output.println(Protocol.ACK_TOKEN);
-        output.flush();
-
-        fileContent.writeContent(in);
-
-        PrintWriter controllerOutput = dstore.getControllerOutput();
-        controllerOutput.println(Protocol.STORE_ACK_TOKEN + " " + fileContent.getfilename());
-        controllerOutput.flush();
+        return Protocol.LINK_FAILED_TOKEN + " " + filename;
     }
 
     private void handleRebalanceStore(String command) {
@@ -375,16 +321,20 @@ class StoreThread extends Thread {
             return;
         }
         String filename = tokens[1];
-        int filesize = Integer.valueOf(tokens[2]);
+        long filesize = Long.valueOf(tokens[2]);
         if (filesize < 0) {
             return;
         }
-        fileContent = new FileContent(filename, filesize, dstore.getFileFolder());
+        fileContent = new FileContent(filename, filesize, dstore.getFileFolder(), dstore.getCompression(), dstore.isDedup());
         dstore.addFile(fileContent);
         output.println(Protocol.ACK_TOKEN);
         output.flush();
 
-        fileContent.writeContent(in);
+        if (fileContent.writeContent(FileTransfer.inputChannel(socket, in))) {
+            dstore.completeFile(fileContent);
+        } else {
+            dstore.abortFile(fileContent);
+        }
     }
 
     /**
@@ -393,17 +343,20 @@ class StoreThread extends Thread {
      */
     private void handleDataLoad(String command) {
         String[] tokens = command.split(" ");
-        if (tokens.length != 2) {
+        boolean ranged = tokens[0].equals(Protocol.LOAD_DATA_RANGE_TOKEN);
+        if (tokens.length != (ranged ? 4 : 2)) {
             return;
         }
         String filename = tokens[1];
-        String path = dstore.getFileFolder() + File.separator + filename;
         try {
-            FileInputStream fis = new FileInputStream(new File(path));
-            OutputStream os = socket.getOutputStream();
-            os.write(fis.readNBytes(this.dstore.getFilesize(filename)));
-            os.flush();
-            os.close();
+            long filesize = this.dstore.getFilesize(filename);
+            long offset = ranged ? Long.valueOf(tokens[2]) : 0;
+            long length = ranged ? Long.valueOf(tokens[3]) : filesize;
+            // A range past the end is cut short, one starting past it gets nothing.
+            if (filesize >= 0 && offset >= 0 && offset <= filesize && length >= 0) {
+                dstore.sendFile(filename, filesize, offset, Math.min(length, filesize - offset), FileTransfer.outputChannel(socket));
+            }
+            socket.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -420,10 +373,8 @@ class StoreThread extends Thread {
             return;
         }
         String filename = tokens[1];
-        String path = dstore.getFileFolder() + File.separator + filename;
-        File file = new File(path);
-        file.delete();
-        if (dstore.removeFile(filename)) {
+        if (dstore.deleteFile(filename)) {
+            System.out.println("Send to controller: " + Protocol.REMOVE_ACK_TOKEN + " " + filename);
             output.println(Protocol.REMOVE_ACK_TOKEN + " " + filename);
         } else {
             output.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + filename);
@@ -432,133 +383,2794 @@ class StoreThread extends Thread {
     }
 
     /**
-     * Handle command LIST>
+     * Handle command LIST.
      * 
      * @param command
+     * @return reply
      */
-    private void handleList(String command) {
-        String filenames = dstore.listFile();
-        output.println(Protocol.LIST_TOKEN + " " + filenames);
-        output.flush();
+    private String handleList(String command) {
+        return Protocol.LIST_TOKEN + " " + dstore.listFile();
     }
 
     /**
-     * Handle command REBALANCE.
+     * Handle command LIST_PAGE.
      * 
      * @param command
+     * @return reply, null if malformed
      */
-    private void handleRebalance(String command) {
+    private String handleListPage(String command) {
+        ListPage listPage = ListPage.parse(command);
+        if (listPage == null) {
+            return null;
+        }
+        return dstore.listFile(listPage);
+    }
+
+    /**
+     * Handle command REBALANCE, on a worker since it waits for every
+     * transfer.
+     * 
+     * @param command
+     * @return reply
+     */
+    private String handleRebalance(String command) {
         String[] parts = command.split(" ");
         int num = 1;
         int numberToSend = Integer.valueOf(parts[num++]);
+        ArrayList<Runnable> transfers = new ArrayList<>();
         for (int i = 0; i < numberToSend; i++) {
             String filename = parts[num++];
             int portToSend = Integer.valueOf(parts[num++]);
             for (int j = 0; j < portToSend; j++) {
                 int dport = Integer.valueOf(parts[num++]);
-                try {
-                    Socket socket = new Socket();
-                    socket.connect(new InetSocketAddress("127.0.0.1", dport), this.dstore.getTimeout());
-                    BufferedReader dinput = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    PrintWriter doutput = new PrintWriter(socket.getOutputStream());
-                    doutput.println(Protocol.REBALANCE_STORE_TOKEN + " " + filename + " " + this.dstore.getFilesize(filename));
-                    doutput.flush();
-                    String response = dinput.readLine();
-                    if (response.startsWith(Protocol.ACK_TOKEN)) {
-                        String path = dstore.getFileFolder() + File.separator + filename;
-                        
-                        FileInputStream fis = new FileInputStream(new File(path));
-                        OutputStream os = socket.getOutputStream();
-                        os.write(fis.readNBytes(this.dstore.getFilesize(filename)));
-                        os.flush();
-                    }
-                    dinput.close();
-                    doutput.close();
-                    socket.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+                transfers.add(() -> dstore.rebalanceSend(filename, dport));
             }
         }
+        dstore.runTransfers(transfers);
         int numberToRemove = Integer.valueOf(parts[num++]);
         for (int i = 0; i < numberToRemove; i++) {
             String filename = parts[num++];
-            this.dstore.removeFile(filename);
+            this.dstore.deleteFile(filename);
         }
-        output.println(Protocol.REBALANCE_COMPLETE_TOKEN);
-        output.flush();
+        return Protocol.REBALANCE_COMPLETE_TOKEN;
     }
 }
 
 /**
- * Class dstore.
+ * Space report thread, sends used and free bytes to the controller.
  */
-public class Dstore {
-
-    private int port;
-    private int cport;
-    private int timeout;
-    private String fileFolder;
-    private HashMap<String, FileContent> files;
-    private BufferedReader controllerInput;
-    private PrintWriter controllerOutput;
-    private ReadWriteLock readWriteLock;
+class SpaceThread extends Thread {
+    private int period;
+    private Dstore dstore;
 
     /**
      * Constructor.
      * 
-     * @param port
-     * @param cport
-     * @param timeout
-     * @param fileFolder
+     * @param period
+     * @param dstore
      */
-    public Dstore(int port, int cport, int timeout, String fileFolder) {
-        this.port = port;
-        this.cport = cport;
-        this.timeout = timeout;
-        this.fileFolder = fileFolder;
-        this.files = new HashMap<>();
-        this.readWriteLock = new ReentrantReadWriteLock();
+    public SpaceThread(int period, Dstore dstore) {
+        this.period = period;
+        this.dstore = dstore;
+    }
 
-        this.initFileFolder();
-        this.handleController();
-        this.handleRequest();
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(period);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            PrintWriter controllerOutput = dstore.getControllerOutput();
+            if (controllerOutput != null) {
+                controllerOutput.println(Protocol.SPACE_TOKEN + " " + dstore.getSpace());
+                controllerOutput.flush();
+            }
+        }
     }
+}
+
+/**
+ * File transfer.
+ */
+class FileTransfer {
 
     /**
-     * Get controll port.
-     * 
+     * Maximum bytes handed to the kernel per transferTo call, so one large
+     * load cannot monopolise the socket and heap use stays constant.
+     */
+    public final static long CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Get a channel reading from the socket, bypassing stream copies when
+     * the socket is backed by a SocketChannel.
+     * 
+     * @param socket
+     * @param in
+     * @return
+     */
+    public static ReadableByteChannel inputChannel(Socket socket, InputStream in) {
+        if (socket.getChannel() != null) {
+            return socket.getChannel();
+        }
+        return Channels.newChannel(in);
+    }
+
+    /**
+     * Get a channel writing to the socket.
+     * 
+     * @param socket
+     * @return
+     * @throws IOException
+     */
+    public static WritableByteChannel outputChannel(Socket socket) throws IOException {
+        if (socket.getChannel() != null) {
+            return socket.getChannel();
+        }
+        return Channels.newChannel(socket.getOutputStream());
+    }
+
+    /**
+     * Open the next link of a store chain, sending it STORE with the ports
+     * after it and waiting for its ACK.
+     * 
+     * @param filename
+     * @param filesize
+     * @param ports
+     * @param timeout
+     * @param wire compression to offer, null to send as is
+     * @return channel to send the file content to, closing the connection
+     * @throws IOException
+     */
+    public static WritableByteChannel openChain(String filename, long filesize, String[] ports, int timeout, Compression wire) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        Socket socket = socketChannel.socket();
+        try {
+            socket.connect(new InetSocketAddress("127.0.0.1", Integer.valueOf(ports[0])), timeout);
+            StringBuilder stringBuilder = new StringBuilder((wire != null ? Protocol.STORE_DEFLATE_TOKEN : Protocol.STORE_TOKEN) + " " + filename + " " + filesize);
+            for (int i = 1; i < ports.length; i++) {
+                stringBuilder.append(" ");
+                stringBuilder.append(ports[i]);
+            }
+            stringBuilder.append("\n");
+            ByteBuffer request = ByteBuffer.wrap(stringBuilder.toString().getBytes());
+            while (request.hasRemaining()) {
+                socketChannel.write(request);
+            }
+            // Read the ACK byte by byte, nothing past it may be buffered away.
+            socket.setSoTimeout(timeout);
+            InputStream in = socket.getInputStream();
+            StringBuilder ack = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                ack.append((char) b);
+            }
+            if (wire != null && ack.toString().trim().equals(Protocol.ACK_TOKEN + " " + Protocol.DEFLATE_FLAG)) {
+                return new DeflatingChannel(socketChannel, wire);
+            }
+            if (!ack.toString().trim().equals(Protocol.ACK_TOKEN)) {
+                throw new IOException("Port " + ports[0] + " did not ACK " + filename + ".");
+            }
+            return socketChannel;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send file to a channel. Uses FileChannel.transferTo, which becomes a
+     * sendfile when the channel is a SocketChannel.
+     * 
+     * @param path
+     * @param filesize
+     * @param target
+     * @throws IOException
+     */
+    public static void sendFile(String path, long filesize, WritableByteChannel target) throws IOException {
+        sendFile(path, 0, filesize, target);
+    }
+
+    /**
+     * Send length bytes of a file from offset to a channel.
+     * 
+     * @param path
+     * @param offset
+     * @param length
+     * @param target
+     * @throws IOException
+     */
+    public static void sendFile(String path, long offset, long length, WritableByteChannel target) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                long sent = fileChannel.transferTo(position, Math.min(CHUNK_SIZE, end - position), target);
+                if (sent <= 0 && position >= fileChannel.size()) {
+                    throw new EOFException("File " + path + " is shorter than " + end + " bytes.");
+                }
+                position += sent;
+            }
+        }
+    }
+
+    /**
+     * Send length bytes of a file from offset to a stream by copying it
+     * through a heap buffer, the stream read engine.
+     * 
+     * @param path
+     * @param offset
+     * @param length
+     * @param outputStream
+     * @throws IOException
+     */
+    public static void streamFile(String path, long offset, long length, OutputStream outputStream) throws IOException {
+        byte[] bytes = new byte[BufferPool.BUFFER_SIZE];
+        try (FileInputStream inputStream = new FileInputStream(path)) {
+            inputStream.getChannel().position(offset);
+            long left = length;
+            while (left > 0) {
+                int read = inputStream.read(bytes, 0, (int) Math.min(bytes.length, left));
+                if (read < 0) {
+                    throw new EOFException("File " + path + " is shorter than " + (offset + length) + " bytes.");
+                }
+                outputStream.write(bytes, 0, read);
+                left -= read;
+            }
+            outputStream.flush();
+        }
+    }
+
+    /**
+     * Send length bytes of a buffer from offset to a channel.
+     * 
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param target
+     * @throws IOException
+     */
+    public static void sendBuffer(ByteBuffer buffer, long offset, long length, WritableByteChannel target) throws IOException {
+        buffer.limit((int) (offset + length));
+        buffer.position((int) offset);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+}
+
+/**
+ * Manifest, a journal of the files a dstore holds kept next to its folder,
+ * "+ name size checksum [codec stored_size] [blob]" once a file is written and
+ * "- name" once removed.
+ * A restart rebuilds the file list from it without reading any file.
+ */
+class Manifest {
+    private String path;
+    private PrintWriter writer;
+
+    /**
+     * Constructor.
+     * 
+     * @param fileFolder
+     */
+    public Manifest(String fileFolder) {
+        this.path = new File(fileFolder).getAbsolutePath() + ".manifest";
+    }
+
+    /**
+     * Load files, by name, with the size and checksum last journaled.
+     * 
+     * @return
+     */
+    public TreeMap<String, FileContent> load() {
+        TreeMap<String, FileContent> files = new TreeMap<>();
+        File file = new File(path);
+        if (!file.exists()) {
+            return files;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                if ((tokens.length == 4 || tokens.length == 5) && tokens[0].equals("+")) {
+                    files.put(tokens[1], new FileContent(tokens[1], Long.valueOf(tokens[2]), Long.valueOf(tokens[3]), null, Long.valueOf(tokens[2]),
+                            tokens.length == 5 ? tokens[4] : null));
+                } else if ((tokens.length == 6 || tokens.length == 7) && tokens[0].equals("+")) {
+                    files.put(tokens[1], new FileContent(tokens[1], Long.valueOf(tokens[2]), Long.valueOf(tokens[3]), tokens[4], Long.valueOf(tokens[5]),
+                            tokens.length == 7 ? tokens[6] : null));
+                } else if (tokens.length == 2 && tokens[0].equals("-")) {
+                    files.remove(tokens[1]);
+                }
+            }
+        } catch (Exception e) {
+            // A torn last line from a crash ends the journal there.
+            e.printStackTrace();
+        }
+        return files;
+    }
+
+    /**
+     * Rewrite the journal with just the files kept, then append to it.
+     * 
+     * @param files
+     * @throws IOException
+     */
+    public synchronized void open(Collection<FileContent> files) throws IOException {
+        File temp = new File(path + ".tmp");
+        try (PrintWriter tempWriter = new PrintWriter(new BufferedWriter(new FileWriter(temp)))) {
+            for (FileContent fileContent: files) {
+                tempWriter.println(getRecord(fileContent));
+            }
+        }
+        Files.move(temp.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = new PrintWriter(new BufferedWriter(new FileWriter(path, true)));
+    }
+
+    /**
+     * Journal a written file.
+     * 
+     * @param fileContent
+     */
+    public synchronized void add(FileContent fileContent) {
+        writer.println(getRecord(fileContent));
+        writer.flush();
+    }
+
+    /**
+     * Get record of a written file.
+     * 
+     * @param fileContent
+     * @return
+     */
+    private static String getRecord(FileContent fileContent) {
+        String record = "+ " + fileContent.getfilename() + " " + fileContent.getFilesize() + " " + fileContent.getChecksum();
+        if (fileContent.getCodec() != null) {
+            record += " " + fileContent.getCodec() + " " + fileContent.getStoredSize();
+        }
+        return fileContent.getBlob() == null ? record : record + " " + fileContent.getBlob();
+    }
+
+    /**
+     * Journal a removed file.
+     * 
+     * @param filename
+     */
+    public synchronized void remove(String filename) {
+        writer.println("- " + filename);
+        writer.flush();
+    }
+}
+
+/**
+ * File mapping, a read only mapping of a whole file shared by the readers
+ * holding a reference to it.
+ */
+class FileMapping {
+    private MappedByteBuffer buffer;
+    private int references;
+    private boolean retired;
+
+    /**
+     * Constructor.
+     * 
+     * @param buffer
+     */
+    public FileMapping(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Get buffer, a view of its own for each reader.
+     * 
+     * @return
+     */
+    public ByteBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * Get size.
+     * 
+     * @return
+     */
+    public long getSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Acquire a reference.
+     */
+    public synchronized void acquire() {
+        references++;
+    }
+
+    /**
+     * Release a reference, unmapping a retired mapping once unused.
+     */
+    public synchronized void release() {
+        references--;
+        if (retired && references == 0) {
+            unmap();
+        }
+    }
+
+    /**
+     * Retire mapping once it leaves the table, unmapping it once unused.
+     */
+    public synchronized void retire() {
+        retired = true;
+        if (references == 0) {
+            unmap();
+        }
+    }
+
+    /**
+     * Unmap now instead of when the buffer is collected, so removed files
+     * free their address space and disk blocks at once. Falls back to GC if
+     * the JVM does not allow it.
+     */
+    private void unmap() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+        } catch (Exception e) {
+            System.err.println("Unmap left to GC: " + e);
+        }
+        buffer = null;
+    }
+}
+
+/**
+ * Mapped files, the mmap read engine. Keeps mappings of recently read files
+ * in an LRU table bounded by file count and mapped bytes.
+ */
+class MappedFiles {
+    private int maxFiles;
+    private long maxBytes;
+    private long bytes;
+    private LinkedHashMap<String, FileMapping> mappings;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxFiles
+     * @param maxBytes
+     */
+    public MappedFiles(int maxFiles, long maxBytes) {
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+        this.mappings = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Acquire mapping of a file, mapping it if not mapped yet. The caller
+     * releases it when done.
+     * 
+     * @param filename
+     * @param path
+     * @param filesize
+     * @return null if the file is too large to map
+     * @throws IOException
+     */
+    public synchronized FileMapping acquire(String filename, String path, long filesize) throws IOException {
+        FileMapping mapping = mappings.get(filename);
+        if (mapping == null || mapping.getSize() != filesize) {
+            if (filesize > Integer.MAX_VALUE || filesize > maxBytes) {
+                return null;
+            }
+            invalidate(filename);
+            try (FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                mapping = new FileMapping(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, filesize));
+            }
+            mappings.put(filename, mapping);
+            bytes += filesize;
+            evict(filename);
+        }
+        mapping.acquire();
+        return mapping;
+    }
+
+    /**
+     * Invalidate file, on store and remove.
+     * 
+     * @param filename
+     */
+    public synchronized void invalidate(String filename) {
+        FileMapping mapping = mappings.remove(filename);
+        if (mapping != null) {
+            bytes -= mapping.getSize();
+            mapping.retire();
+        }
+    }
+
+    /**
+     * Evict least recently used mappings over the bounds, except one.
+     * 
+     * @param keep
+     */
+    private void evict(String keep) {
+        Iterator<Entry<String, FileMapping> > iterator = mappings.entrySet().iterator();
+        while ((mappings.size() > maxFiles || bytes > maxBytes) && iterator.hasNext()) {
+            Entry<String, FileMapping> entry = iterator.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            iterator.remove();
+            bytes -= entry.getValue().getSize();
+            entry.getValue().retire();
+        }
+    }
+}
+
+/**
+ * Hot object cache, whole small files held in direct buffers and bounded by
+ * total bytes. Entries are kept in LRU order, and a count-min sketch of
+ * recent reads decides admission (TinyLFU): a new file only evicts the LRU
+ * victims it was read more often than, so a scan of cold files cannot flush
+ * the hot ones.
+ */
+class HotCache {
+    private static final int SKETCH_DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+
+    private long capacity;
+    private long maxObject;
+    private long bytes;
+    private LinkedHashMap<String, ByteBuffer> entries;
+    private int[][] sketch;
+    private int sketchMask;
+    private int samples;
+    private AtomicLong epoch;
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity total bytes
+     * @param maxObject largest file cached, at most Integer.MAX_VALUE as one buffer holds it
+     */
+    public HotCache(long capacity, long maxObject) {
+        this.capacity = capacity;
+        this.maxObject = Math.min(Math.min(maxObject, capacity), Integer.MAX_VALUE);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        int width = Integer.highestOneBit((int) Math.max(1024, Math.min(1 << 20, capacity / 4096)));
+        this.sketch = new int[SKETCH_DEPTH][width];
+        this.sketchMask = width - 1;
+        this.epoch = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * Get file content, reading it from disk on a miss if admitted.
+     * 
+     * @param filename
+     * @param path
+     * @param filesize
+     * @return read only buffer, null if not cached
+     * @throws IOException
+     */
+    public ByteBuffer get(String filename, String path, long filesize) throws IOException {
+        long start;
+        synchronized (this) {
+            record(filename);
+            ByteBuffer buffer = entries.get(filename);
+            if (buffer != null) {
+                hits.incrementAndGet();
+                return buffer.duplicate();
+            }
+            misses.incrementAndGet();
+            if (filesize > maxObject || !admit(filename, filesize, false)) {
+                return null;
+            }
+            start = epoch.get();
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) filesize);
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+        }
+        buffer.flip();
+        buffer = buffer.asReadOnlyBuffer();
+        synchronized (this) {
+            // Drop it if any file changed while it was read.
+            if (epoch.get() == start && !entries.containsKey(filename) && admit(filename, filesize, true)) {
+                entries.put(filename, buffer);
+                bytes += filesize;
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Invalidate file, on store and remove.
+     * 
+     * @param filename
+     */
+    public synchronized void invalidate(String filename) {
+        epoch.incrementAndGet();
+        ByteBuffer buffer = entries.remove(filename);
+        if (buffer != null) {
+            bytes -= buffer.capacity();
+        }
+    }
+
+    /**
+     * Get stats, hits misses bytes entries.
+     * 
+     * @return
+     */
+    public synchronized String getStats() {
+        return hits.get() + " " + misses.get() + " " + bytes + " " + entries.size();
+    }
+
+    /**
+     * Admit a file, evicting LRU victims read less often than it. Nothing is
+     * evicted unless all the room it needs can be made.
+     * 
+     * @param filename
+     * @param filesize
+     * @param evict false to only check
+     * @return
+     */
+    private boolean admit(String filename, long filesize, boolean evict) {
+        long free = capacity - bytes;
+        int frequency = frequency(filename);
+        ArrayList<String> victims = new ArrayList<>();
+        Iterator<Entry<String, ByteBuffer> > iterator = entries.entrySet().iterator();
+        while (free < filesize && iterator.hasNext()) {
+            Entry<String, ByteBuffer> victim = iterator.next();
+            if (frequency(victim.getKey()) >= frequency) {
+                return false;
+            }
+            victims.add(victim.getKey());
+            free += victim.getValue().capacity();
+        }
+        if (free < filesize || !evict) {
+            return free >= filesize;
+        }
+        for (String victim: victims) {
+            bytes -= entries.remove(victim).capacity();
+        }
+        return true;
+    }
+
+    /**
+     * Record a read in the sketch, halving all counts every 10 reads per
+     * counter so old popularity fades.
+     * 
+     * @param filename
+     */
+    private void record(String filename) {
+        int hash = spread(filename.hashCode());
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            int index = index(hash, i);
+            if (sketch[i][index] < MAX_COUNT) {
+                sketch[i][index]++;
+            }
+        }
+        if (++samples >= 10 * (sketchMask + 1)) {
+            samples = 0;
+            for (int[] row: sketch) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Estimated recent reads of a file.
+     * 
+     * @param filename
+     * @return
+     */
+    private int frequency(String filename) {
+        int hash = spread(filename.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            frequency = Math.min(frequency, sketch[i][index(hash, i)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Index of a hash in a sketch row.
+     * 
+     * @param hash
+     * @param row
+     * @return
+     */
+    private int index(int hash, int row) {
+        return (hash >>> (8 * row) ^ hash * (2 * row + 1)) & sketchMask;
+    }
+
+    /**
+     * Spread hash bits.
+     * 
+     * @param hash
+     * @return
+     */
+    private static int spread(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
+
+/**
+ * Buffer pool.
+ */
+class BufferPool {
+
+    /**
+     * Size of each pooled buffer.
+     */
+    public final static int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Idle buffers kept for reuse; buffers released beyond this are left to GC.
+     */
+    public final static int MAX_IDLE = 256;
+
+    private static ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private static AtomicInteger idle = new AtomicInteger(0);
+
+    /**
+     * Acquire a direct buffer.
+     * 
+     * @return
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        idle.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Release buffer back to the pool.
+     * 
+     * @param buffer
+     */
+    public static void release(ByteBuffer buffer) {
+        if (idle.incrementAndGet() <= MAX_IDLE) {
+            buffers.offer(buffer);
+        } else {
+            idle.decrementAndGet();
+        }
+    }
+}
+
+/**
+ * Shard layout of an erasure coded file, where each of its k + m shards is
+ * stored.
+ */
+class ShardLayout {
+    private String filename;
+    private long filesize;
+    private int k;
+    private int m;
+    private String[] ports;
+    private long deadline;
+
+    /**
+     * Constructor.
+     * 
+     * @param filename
+     * @param filesize
+     * @param k
+     * @param m
+     * @param ports one per shard, "0" if lost
+     * @param deadline time the client's request must arrive by
+     */
+    public ShardLayout(String filename, long filesize, int k, int m, String[] ports, long deadline) {
+        this.filename = filename;
+        this.filesize = filesize;
+        this.k = k;
+        this.m = m;
+        this.ports = ports;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Parse "filename filesize k m port..." from tokens.
+     * 
+     * @param tokens
+     * @param from index of the filename
+     * @param deadline
+     * @return null if malformed
+     */
+    public static ShardLayout parse(String[] tokens, int from, long deadline) {
+        if (tokens.length < from + 4) {
+            return null;
+        }
+        int k = Integer.valueOf(tokens[from + 2]);
+        int m = Integer.valueOf(tokens[from + 3]);
+        if (tokens.length != from + 4 + k + m) {
+            return null;
+        }
+        return new ShardLayout(tokens[from], Long.valueOf(tokens[from + 1]), k, m, Arrays.copyOfRange(tokens, from + 4, tokens.length), deadline);
+    }
+
+    /**
+     * Get filename.
+     * 
+     * @return
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Get file size.
+     * 
+     * @return
+     */
+    public long getFilesize() {
+        return filesize;
+    }
+
+    /**
+     * Get data shards.
+     * 
+     * @return
+     */
+    public int getDataShards() {
+        return k;
+    }
+
+    /**
+     * Get parity shards.
+     * 
+     * @return
+     */
+    public int getParityShards() {
+        return m;
+    }
+
+    /**
+     * Get port of a shard.
+     * 
+     * @param index
+     * @return 0 if lost
+     */
+    public int getPort(int index) {
+        return Integer.valueOf(ports[index]);
+    }
+
+    /**
+     * Get block size of the largest row.
+     * 
+     * @return
+     */
+    public int getBlockSize() {
+        return ReedSolomon.blockSize(filesize, k);
+    }
+
+    /**
+     * Get shard size.
+     * 
+     * @return
+     */
+    public long getShardSize() {
+        return ReedSolomon.shardSize(filesize, k);
+    }
+
+    /**
+     * Get deadline.
+     * 
+     * @return
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+}
+
+/**
+ * Shard reader, a channel of an erasure coded file, or of one of its shards,
+ * decoded row by row from k shards fetched with LOAD_DATA. Data shards are
+ * fetched first, so with none lost the file is only copied.
+ */
+class ShardReader implements ReadableByteChannel {
+    private ShardLayout layout;
+    private ReedSolomon reedSolomon;
+    private ArrayList<Socket> sockets;
+    private DataInputStream[] sources;
+    private byte[][] blocks;
+    private byte[][] coefficients;
+    private int[] direct;
+    private ByteBuffer row;
+    private long remaining;
+    private long left;
+
+    /**
+     * Constructor.
+     * 
+     * @param layout
+     * @param target shard to read, -1 for the file
+     * @param timeout
+     * @param wire stats of shards fetched deflated, null to fetch them as is
+     * @throws IOException if fewer than k shards can be fetched
+     */
+    public ShardReader(ShardLayout layout, int target, int timeout, Compression wire) throws IOException {
+        this.layout = layout;
+        this.reedSolomon = new ReedSolomon(layout.getDataShards(), layout.getParityShards());
+        int k = layout.getDataShards();
+        int blockSize = layout.getBlockSize();
+        this.sockets = new ArrayList<>();
+        this.sources = new DataInputStream[k];
+        int[] indexes = new int[k];
+        int found = 0;
+        for (int i = 0; i < k + layout.getParityShards() && found < k; i++) {
+            if (i == target || layout.getPort(i) == 0) {
+                continue;
+            }
+            try {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress("127.0.0.1", layout.getPort(i)), timeout);
+                socket.setSoTimeout(timeout);
+                sockets.add(socket);
+                PrintWriter output = new PrintWriter(socket.getOutputStream());
+                output.println((wire != null ? Protocol.LOAD_DATA_DEFLATE_TOKEN : Protocol.LOAD_DATA_TOKEN) + " " + ReedSolomon.shardName(layout.getFilename(), i));
+                output.flush();
+                InputStream in = socket.getInputStream();
+                if (wire != null) {
+                    in = Channels.newInputStream(new InflatingChannel(Channels.newChannel(in), layout.getShardSize(), wire));
+                }
+                sources[found] = new DataInputStream(in);
+                indexes[found++] = i;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (found < k) {
+            close();
+            throw new IOException("Only " + found + " of " + k + " shards of " + layout.getFilename() + " found.");
+        }
+        // Each output block is either a source block as is or decoded from all of them.
+        int outputs = target == -1 ? k : 1;
+        this.blocks = new byte[k + outputs][blockSize];
+        this.coefficients = new byte[outputs][];
+        this.direct = new int[outputs];
+        for (int j = 0; j < outputs; j++) {
+            int shard = target == -1 ? j : target;
+            direct[j] = -1;
+            for (int i = 0; i < k; i++) {
+                if (indexes[i] == shard) {
+                    direct[j] = i;
+                }
+            }
+            if (direct[j] == -1) {
+                coefficients[j] = reedSolomon.coefficients(indexes, shard);
+            }
+        }
+        this.row = ByteBuffer.allocate(outputs * blockSize);
+        this.row.limit(0);
+        this.remaining = target == -1 ? layout.getFilesize() : layout.getShardSize();
+        this.left = layout.getFilesize();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!row.hasRemaining()) {
+            if (remaining == 0) {
+                return -1;
+            }
+            readRow();
+        }
+        int length = Math.min(dst.remaining(), row.remaining());
+        ByteBuffer slice = row.duplicate();
+        slice.limit(slice.position() + length);
+        dst.put(slice);
+        row.position(row.position() + length);
+        return length;
+    }
+
+    /**
+     * Fetch the next row from the sources and decode it.
+     * 
+     * @throws IOException
+     */
+    private void readRow() throws IOException {
+        int k = sources.length;
+        int blockSize = ReedSolomon.rowBlockSize(left, k);
+        left -= Math.min(left, (long) blockSize * k);
+        byte[][] inputs = Arrays.copyOf(blocks, k);
+        for (int i = 0; i < k; i++) {
+            sources[i].readFully(inputs[i], 0, blockSize);
+        }
+        row.clear();
+        for (int j = 0; j < direct.length; j++) {
+            byte[] out = direct[j] != -1 ? inputs[direct[j]] : blocks[k + j];
+            if (direct[j] == -1) {
+                ReedSolomon.combine(coefficients[j], inputs, out, blockSize);
+            }
+            row.put(out, 0, blockSize);
+        }
+        row.flip();
+        if (row.limit() > remaining) {
+            row.limit((int) remaining);
+        }
+        remaining -= row.limit();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Socket socket: sockets) {
+            socket.close();
+        }
+    }
+}
+
+/**
+ * Shard writer, encodes a client's upload into k + m shards and streams each
+ * to its dstore with STORE, which acks it to the controller.
+ */
+class ShardWriter {
+
+    /**
+     * Encode content read from the channel.
+     * 
+     * @param channel
+     * @param layout
+     * @param timeout
+     * @param wire compression to offer the shard dstores, null to send as is
+     * @return indexes of the shards that could not be sent, null if the upload broke off
+     */
+    public static ArrayList<Integer> encode(ReadableByteChannel channel, ShardLayout layout, int timeout, Compression wire) {
+        int k = layout.getDataShards();
+        int m = layout.getParityShards();
+        int blockSize = layout.getBlockSize();
+        ReedSolomon reedSolomon = new ReedSolomon(k, m);
+        WritableByteChannel[] shards = new WritableByteChannel[k + m];
+        ArrayList<Integer> lost = new ArrayList<>();
+        for (int i = 0; i < k + m; i++) {
+            try {
+                shards[i] = FileTransfer.openChain(ReedSolomon.shardName(layout.getFilename(), i), layout.getShardSize(),
+                        new String[] {String.valueOf(layout.getPort(i))}, timeout, wire);
+            } catch (IOException e) {
+                e.printStackTrace();
+                lost.add(i);
+            }
+        }
+        byte[][] blocks = new byte[k + m][blockSize];
+        byte[][] data = Arrays.copyOf(blocks, k);
+        byte[][] parity = Arrays.copyOfRange(blocks, k, k + m);
+        try {
+            long remaining = layout.getFilesize();
+            while (remaining > 0) {
+                int rowBlockSize = ReedSolomon.rowBlockSize(remaining, k);
+                for (int i = 0; i < k; i++) {
+                    ByteBuffer block = ByteBuffer.wrap(data[i]);
+                    block.limit((int) Math.min(rowBlockSize, remaining));
+                    while (block.hasRemaining()) {
+                        if (channel.read(block) < 0) {
+                            throw new EOFException("File " + layout.getFilename() + " ended " + remaining + " bytes early.");
+                        }
+                    }
+                    remaining -= block.limit();
+                    Arrays.fill(data[i], block.limit(), rowBlockSize, (byte) 0);
+                }
+                reedSolomon.encode(data, parity, rowBlockSize);
+                for (int i = 0; i < k + m; i++) {
+                    if (shards[i] == null) {
+                        continue;
+                    }
+                    try {
+                        ByteBuffer block = ByteBuffer.wrap(blocks[i], 0, rowBlockSize);
+                        while (block.hasRemaining()) {
+                            shards[i].write(block);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        shards[i].close();
+                        shards[i] = null;
+                        lost.add(i);
+                    }
+                }
+            }
+            return lost;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            for (WritableByteChannel shard: shards) {
+                try {
+                    if (shard != null) {
+                        shard.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Store chain, the dstores a client's STORE is forwarded to in turn.
+ */
+class StoreChain {
+    private long filesize;
+    private String[] ports;
+    private long deadline;
+
+    /**
+     * Constructor.
+     * 
+     * @param filesize
+     * @param ports
+     * @param deadline time the client's STORE must arrive by
+     */
+    public StoreChain(long filesize, String[] ports, long deadline) {
+        this.filesize = filesize;
+        this.ports = ports;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Get file size.
+     * 
+     * @return
+     */
+    public long getFilesize() {
+        return filesize;
+    }
+
+    /**
+     * Get ports.
+     * 
+     * @return
+     */
+    public String[] getPorts() {
+        return ports;
+    }
+
+    /**
+     * Get deadline.
+     * 
+     * @return
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+}
+
+/**
+ * Compression policy of a dstore compressing files on ingest. Each file is
+ * tried on its first block, and kept as is when that block does not shrink
+ * by at least the minimum ratio, so already compressed data costs nothing.
+ */
+class Compression {
+    private int level;
+    private double minRatio;
+    private AtomicLong logicalBytes;
+    private AtomicLong storedBytes;
+    private AtomicLong nanos;
+
+    /**
+     * Constructor.
+     * 
+     * @param level deflate level
+     * @param minRatio smallest ratio of the first block worth compressing
+     */
+    public Compression(int level, double minRatio) {
+        this.level = level;
+        this.minRatio = minRatio;
+        this.logicalBytes = new AtomicLong();
+        this.storedBytes = new AtomicLong();
+        this.nanos = new AtomicLong();
+    }
+
+    /**
+     * Get deflate level.
+     * 
+     * @return
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Is the first block worth compressing.
+     * 
+     * @param raw
+     * @param compressed
+     * @return
+     */
+    public boolean isWorth(long raw, long compressed) {
+        return raw >= compressed * minRatio;
+    }
+
+    /**
+     * Record a written file.
+     * 
+     * @param logical
+     * @param stored
+     * @param time nanoseconds spent compressing
+     */
+    public void record(long logical, long stored, long time) {
+        logicalBytes.addAndGet(logical);
+        storedBytes.addAndGet(stored);
+        nanos.addAndGet(time);
+    }
+
+    /**
+     * Get stats, logical and stored bytes written and milliseconds spent
+     * compressing.
+     * 
+     * @return
+     */
+    public String getStats() {
+        return logicalBytes.get() + " " + storedBytes.get() + " " + nanos.get() / 1000000;
+    }
+}
+
+/**
+ * Compressed file, the at-rest format of a file a dstore compressed. The
+ * content is cut into blocks of BLOCK_SIZE bytes, each deflated on its own
+ * or kept as is if it does not shrink. A trailer indexes where every block
+ * starts, so a ranged read only inflates the blocks it covers.
+ * 
+ * Each block is an int length, with the top bit set for a block kept as is,
+ * then its bytes. The trailer is a long offset per block then the long
+ * file size, int block count, int block size and long MAGIC.
+ */
+class CompressedFile {
+    public final static int BLOCK_SIZE = 64 * 1024;
+    public final static String CODEC = "deflate";
+
+    private final static long MAGIC = 0x4453544f52455a31L;
+    private final static int TAIL_SIZE = 24;
+    private final static int STORED = 0x80000000;
+
+    private FileChannel fileChannel;
+    private Deflater deflater;
+    private Compression compression;
+    private byte[] block;
+    private int blockLength;
+    private byte[] frame;
+    private ArrayList<Long> offsets;
+    private long position;
+    private long logical;
+    private long nanos;
+
+    /**
+     * Constructor of a writer.
+     * 
+     * @param fileChannel
+     * @param compression
+     */
+    public CompressedFile(FileChannel fileChannel, Compression compression) {
+        this.fileChannel = fileChannel;
+        this.compression = compression;
+        this.deflater = new Deflater(compression.getLevel());
+        this.block = new byte[BLOCK_SIZE];
+        this.frame = new byte[BLOCK_SIZE + 4];
+        this.offsets = new ArrayList<>();
+    }
+
+    /**
+     * Try compressing a first block.
+     * 
+     * @param bytes
+     * @param length
+     * @param compression
+     * @return true if it shrinks enough to compress the file
+     */
+    public static boolean trial(byte[] bytes, int length, Compression compression) {
+        Deflater deflater = new Deflater(compression.getLevel());
+        try {
+            deflater.setInput(bytes, 0, length);
+            deflater.finish();
+            byte[] out = new byte[length];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < length) {
+                compressed += deflater.deflate(out, compressed, length - compressed);
+            }
+            return deflater.finished() && compression.isWorth(length, compressed);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write content, compressing every full block.
+     * 
+     * @param buffer
+     * @throws IOException
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), BLOCK_SIZE - blockLength);
+            buffer.get(block, blockLength, length);
+            blockLength += length;
+            if (blockLength == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Write the last block and the trailer.
+     * 
+     * @return stored size
+     * @throws IOException
+     */
+    public long finish() throws IOException {
+        try {
+            if (blockLength > 0) {
+                writeBlock();
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(offsets.size() * 8 + TAIL_SIZE);
+            for (long offset: offsets) {
+                trailer.putLong(offset);
+            }
+            trailer.putLong(logical);
+            trailer.putInt(offsets.size());
+            trailer.putInt(BLOCK_SIZE);
+            trailer.putLong(MAGIC);
+            trailer.flip();
+            position += trailer.remaining();
+            writeFully(trailer);
+            compression.record(logical, position, nanos);
+            return position;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Deflate the block into a frame, or keep it as is if it does not shrink.
+     * 
+     * @throws IOException
+     */
+    private void writeBlock() throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer out = ByteBuffer.wrap(frame, 0, frame(deflater, block, blockLength, frame, true));
+        nanos += System.nanoTime() - start;
+        offsets.add(position);
+        position += out.remaining();
+        logical += blockLength;
+        blockLength = 0;
+        writeFully(out);
+    }
+
+    /**
+     * Frame a block, deflated or kept as is if it does not shrink.
+     * 
+     * @param deflater
+     * @param block
+     * @param length
+     * @param frame BLOCK_SIZE + 4 bytes
+     * @param deflate false to keep the block as is without trying
+     * @return frame length, header included
+     */
+    public static int frame(Deflater deflater, byte[] block, int length, byte[] frame, boolean deflate) {
+        if (deflate) {
+            deflater.reset();
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            int compressed = 0;
+            while (!deflater.finished() && compressed < length) {
+                compressed += deflater.deflate(frame, 4 + compressed, length - compressed);
+            }
+            if (deflater.finished() && compressed < length) {
+                ByteBuffer.wrap(frame).putInt(0, compressed);
+                return 4 + compressed;
+            }
+        }
+        System.arraycopy(block, 0, frame, 4, length);
+        ByteBuffer.wrap(frame).putInt(0, length | STORED);
+        return 4 + length;
+    }
+
+    /**
+     * Is a frame header of a block kept as is.
+     * 
+     * @param header
+     * @return
+     */
+    public static boolean isStored(int header) {
+        return (header & STORED) != 0;
+    }
+
+    /**
+     * Get the length of the bytes following a frame header.
+     * 
+     * @param header
+     * @return
+     */
+    public static int getFrameLength(int header) {
+        return header & ~STORED;
+    }
+
+    /**
+     * Inflate a deflated block.
+     * 
+     * @param inflater
+     * @param in
+     * @param offset
+     * @param length
+     * @param block
+     * @param blockLength
+     * @throws IOException if it does not inflate to blockLength bytes
+     */
+    public static void inflate(Inflater inflater, byte[] in, int offset, int length, byte[] block, int blockLength) throws IOException {
+        inflater.reset();
+        inflater.setInput(in, offset, length);
+        int inflated = 0;
+        try {
+            while (inflated < blockLength && !inflater.finished()) {
+                int n = inflater.inflate(block, inflated, blockLength - inflated);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block.", e);
+        }
+        if (inflated < blockLength) {
+            throw new EOFException("Block inflated to " + inflated + " of " + blockLength + " bytes.");
+        }
+    }
+
+    /**
+     * Write a buffer fully.
+     * 
+     * @param buffer
+     * @throws IOException
+     */
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+    }
+
+    /**
+     * Send length bytes of the content of a compressed file from offset,
+     * inflating only the blocks they fall in.
+     * 
+     * @param path
+     * @param offset
+     * @param length
+     * @param target
+     * @throws IOException
+     */
+    public static void send(String path, long offset, long length, WritableByteChannel target) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            ByteBuffer tail = ByteBuffer.allocate(TAIL_SIZE);
+            readFully(fileChannel, tail, size - TAIL_SIZE);
+            long filesize = tail.getLong(0);
+            int count = tail.getInt(8);
+            int blockSize = tail.getInt(12);
+            if (tail.getLong(16) != MAGIC || offset + length > filesize) {
+                throw new IOException("File " + path + " is not a compressed file of " + (offset + length) + " bytes.");
+            }
+            long indexStart = size - TAIL_SIZE - 8L * count;
+            int first = (int) (offset / blockSize);
+            int last = (int) ((offset + length - 1) / blockSize);
+            // Offsets of the blocks read and of the one after them.
+            ByteBuffer index = ByteBuffer.allocate(8 * (last - first + 2));
+            index.limit(8 * Math.min(last - first + 2, count - first));
+            readFully(fileChannel, index, indexStart + 8L * first);
+            if (last + 1 == count) {
+                index.limit(index.capacity());
+                index.putLong(8 * (last - first + 1), indexStart);
+            }
+            Inflater inflater = new Inflater();
+            byte[] frame = new byte[blockSize + 4];
+            byte[] block = new byte[blockSize];
+            try {
+                for (int i = first; i <= last; i++) {
+                    long start = index.getLong(8 * (i - first));
+                    int frameLength = (int) (index.getLong(8 * (i - first + 1)) - start);
+                    ByteBuffer frameBuffer = ByteBuffer.wrap(frame, 0, frameLength);
+                    readFully(fileChannel, frameBuffer, start);
+                    int header = frameBuffer.getInt(0);
+                    int blockLength = (int) Math.min(blockSize, filesize - (long) i * blockSize);
+                    byte[] content = frame;
+                    int contentStart = 4;
+                    if (!isStored(header)) {
+                        inflate(inflater, frame, 4, header, block, blockLength);
+                        content = block;
+                        contentStart = 0;
+                    }
+                    long blockStart = (long) i * blockSize;
+                    int from = (int) (Math.max(offset, blockStart) - blockStart);
+                    int to = (int) (Math.min(offset + length, blockStart + blockLength) - blockStart);
+                    ByteBuffer out = ByteBuffer.wrap(content, contentStart + from, to - from);
+                    while (out.hasRemaining()) {
+                        target.write(out);
+                    }
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Read a buffer fully from a position.
+     * 
+     * @param fileChannel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = fileChannel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("File ended at " + position + ".");
+            }
+            position += read;
+        }
+    }
+}
+
+/**
+ * Deflating channel, the sending end of a transfer negotiated with the
+ * deflate flag. Content goes out in the frames of CompressedFile with no
+ * trailer. After a block that does not shrink enough the next blocks go out
+ * as is without trying, SKIP_BLOCKS of them doubling up to MAX_SKIP_BLOCKS
+ * while tries keep failing, so incompressible data costs little CPU.
+ */
+class DeflatingChannel implements WritableByteChannel {
+    private final static int SKIP_BLOCKS = 15;
+    private final static int MAX_SKIP_BLOCKS = 1023;
+
+    private WritableByteChannel target;
+    private Compression compression;
+    private Deflater deflater;
+    private byte[] block;
+    private int blockLength;
+    private byte[] frame;
+    private int skip;
+    private int backoff;
+    private long logical;
+    private long wire;
+    private long nanos;
+    private boolean open;
+
+    /**
+     * Constructor.
+     * 
+     * @param target
+     * @param compression
+     */
+    public DeflatingChannel(WritableByteChannel target, Compression compression) {
+        this.target = target;
+        this.compression = compression;
+        this.deflater = new Deflater(compression.getLevel());
+        this.block = new byte[CompressedFile.BLOCK_SIZE];
+        this.frame = new byte[CompressedFile.BLOCK_SIZE + 4];
+        this.backoff = SKIP_BLOCKS;
+        this.open = true;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), block.length - blockLength);
+            src.get(block, blockLength, length);
+            blockLength += length;
+            if (blockLength == block.length) {
+                writeBlock();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Send the block as one frame.
+     * 
+     * @throws IOException
+     */
+    private void writeBlock() throws IOException {
+        long start = System.nanoTime();
+        boolean tried = skip == 0;
+        int frameLength = CompressedFile.frame(deflater, block, blockLength, frame, tried);
+        if (tried && !compression.isWorth(blockLength, frameLength - 4)) {
+            skip = backoff;
+            backoff = Math.min(backoff * 2 + 1, MAX_SKIP_BLOCKS);
+        } else if (tried) {
+            backoff = SKIP_BLOCKS;
+        } else {
+            skip--;
+        }
+        nanos += System.nanoTime() - start;
+        logical += blockLength;
+        wire += frameLength;
+        blockLength = 0;
+        ByteBuffer out = ByteBuffer.wrap(frame, 0, frameLength);
+        while (out.hasRemaining()) {
+            target.write(out);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Send the last block and close the target.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            if (blockLength > 0) {
+                writeBlock();
+            }
+        } finally {
+            compression.record(logical, wire, nanos);
+            deflater.end();
+            target.close();
+        }
+    }
+}
+
+/**
+ * Inflating channel, the receiving end of a transfer negotiated with the
+ * deflate flag, reading exactly the frames of length content bytes.
+ */
+class InflatingChannel implements ReadableByteChannel {
+    private ReadableByteChannel source;
+    private Compression compression;
+    private Inflater inflater;
+    private ByteBuffer header;
+    private byte[] frame;
+    private byte[] block;
+    private ByteBuffer content;
+    private long left;
+    private long logical;
+    private long wire;
+    private long nanos;
+
+    /**
+     * Constructor.
+     * 
+     * @param source
+     * @param length content bytes
+     * @param compression recording what was received
+     */
+    public InflatingChannel(ReadableByteChannel source, long length, Compression compression) {
+        this.source = source;
+        this.compression = compression;
+        this.inflater = new Inflater();
+        this.header = ByteBuffer.allocate(4);
+        this.frame = new byte[CompressedFile.BLOCK_SIZE];
+        this.block = new byte[CompressedFile.BLOCK_SIZE];
+        this.content = ByteBuffer.wrap(block, 0, 0);
+        this.left = length;
+        if (length == 0) {
+            finish();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!content.hasRemaining()) {
+            if (left == 0) {
+                return -1;
+            }
+            readBlock();
+        }
+        int length = Math.min(dst.remaining(), content.remaining());
+        dst.put(block, content.position(), length);
+        content.position(content.position() + length);
+        return length;
+    }
+
+    /**
+     * Read the next frame.
+     * 
+     * @throws IOException
+     */
+    private void readBlock() throws IOException {
+        header.clear();
+        readFully(header);
+        int frameHeader = header.getInt(0);
+        int frameLength = CompressedFile.getFrameLength(frameHeader);
+        int blockLength = (int) Math.min(block.length, left);
+        if (frameLength > block.length || (CompressedFile.isStored(frameHeader) && frameLength != blockLength)) {
+            throw new IOException("Bad frame of " + frameLength + " bytes.");
+        }
+        if (CompressedFile.isStored(frameHeader)) {
+            readFully(ByteBuffer.wrap(block, 0, blockLength));
+        } else {
+            readFully(ByteBuffer.wrap(frame, 0, frameLength));
+            long start = System.nanoTime();
+            CompressedFile.inflate(inflater, frame, 0, frameLength, block, blockLength);
+            nanos += System.nanoTime() - start;
+        }
+        content = ByteBuffer.wrap(block, 0, blockLength);
+        logical += blockLength;
+        wire += 4 + frameLength;
+        left -= blockLength;
+        if (left == 0) {
+            finish();
+        }
+    }
+
+    /**
+     * Read a buffer fully.
+     * 
+     * @param buffer
+     * @throws IOException
+     */
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) {
+                throw new EOFException("Transfer ended " + left + " bytes early.");
+            }
+        }
+    }
+
+    /**
+     * Record the transfer once all content arrived.
+     */
+    private void finish() {
+        compression.record(logical, wire, nanos);
+        inflater.end();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
+
+/**
+ * Blob store of a deduplicating dstore, a folder next to its file folder
+ * holding one blob per distinct content, named by the SHA-256 of it. A
+ * stored file is a hard link to its blob, so files with the same content
+ * share its disk space, and each blob counts the files referencing it. A
+ * blob goes once the last of them is removed.
+ */
+class BlobStore {
+    public final static String ALGORITHM = "SHA-256";
+
+    private File folder;
+    private HashMap<String, FileContent> contents;
+    private HashMap<String, Integer> references;
+
+    /**
+     * Constructor.
+     * 
+     * @param fileFolder
+     */
+    public BlobStore(String fileFolder) {
+        this.folder = new File(new File(fileFolder).getAbsolutePath() + ".blobs");
+        this.contents = new HashMap<>();
+        this.references = new HashMap<>();
+    }
+
+    /**
+     * New digest of the content streamed into a file.
+     * 
+     * @return null if the platform has no SHA-256
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Get blob name of a digest.
+     * 
+     * @param digest
+     * @return
+     */
+    public static String toBlob(byte[] digest) {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (byte b: digest) {
+            stringBuilder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            stringBuilder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Delete every blob, for a dstore starting empty.
+     */
+    public synchronized void clear() {
+        File[] blobs = folder.listFiles();
+        if (blobs != null) {
+            for (File blob: blobs) {
+                blob.delete();
+            }
+        }
+        folder.mkdirs();
+        contents.clear();
+        references.clear();
+    }
+
+    /**
+     * Count the references of the files kept across a restart and delete
+     * blobs none of them references. A file whose blob is missing becomes
+     * its blob again.
+     * 
+     * @param files
+     * @param fileFolder
+     */
+    public synchronized void restore(Collection<FileContent> files, String fileFolder) {
+        folder.mkdirs();
+        for (FileContent fileContent: files) {
+            String blob = fileContent.getBlob();
+            if (blob == null) {
+                continue;
+            }
+            Path path = new File(folder, blob).toPath();
+            try {
+                if (!Files.exists(path)) {
+                    Files.createLink(path, Paths.get(fileFolder, fileContent.getfilename()));
+                }
+                contents.putIfAbsent(blob, fileContent);
+                references.merge(blob, 1, Integer::sum);
+            } catch (IOException e) {
+                e.printStackTrace();
+                fileContent.setBlob(null);
+            }
+        }
+        for (File blob: folder.listFiles()) {
+            if (!references.containsKey(blob.getName())) {
+                blob.delete();
+            }
+        }
+    }
+
+    /**
+     * Add a file once its content is written. If the blob of its content
+     * is already here the file is replaced by a link to it and takes its
+     * codec, otherwise the file becomes the blob. A file that cannot be
+     * linked stays as written, outside the store.
+     * 
+     * @param fileContent
+     * @param file
+     * @return true if the content was already here
+     */
+    public synchronized boolean add(FileContent fileContent, Path file) {
+        String blob = fileContent.getBlob();
+        Path path = new File(folder, blob).toPath();
+        try {
+            FileContent content = contents.get(blob);
+            if (content == null) {
+                Files.createLink(path, file);
+                contents.put(blob, fileContent);
+                references.put(blob, 1);
+                return false;
+            }
+            // Swap the link in under the file's name so readers never miss it.
+            Path temp = new File(folder, "link.tmp").toPath();
+            Files.deleteIfExists(temp);
+            Files.createLink(temp, path);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fileContent.setStored(content.getCodec(), content.getStoredSize());
+            references.merge(blob, 1, Integer::sum);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            fileContent.setBlob(null);
+            return false;
+        }
+    }
+
+    /**
+     * Link a new file to the blob of a digest.
+     * 
+     * @param filename
+     * @param filesize
+     * @param blob
+     * @param file
+     * @return null if the blob is not here
+     */
+    public synchronized FileContent link(String filename, long filesize, String blob, Path file) {
+        FileContent content = contents.get(blob);
+        if (content == null || content.getFilesize() != filesize) {
+            return null;
+        }
+        try {
+            Files.deleteIfExists(file);
+            Files.createLink(file, new File(folder, blob).toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        references.merge(blob, 1, Integer::sum);
+        return new FileContent(filename, filesize, content.getChecksum(), content.getCodec(), content.getStoredSize(), blob);
+    }
+
+    /**
+     * Release a reference of a removed file, deleting the blob after the
+     * last one.
+     * 
+     * @param blob
+     */
+    public synchronized void release(String blob) {
+        Integer count = references.get(blob);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            references.put(blob, count - 1);
+            return;
+        }
+        references.remove(blob);
+        contents.remove(blob);
+        new File(folder, blob).delete();
+    }
+
+    /**
+     * Get stats, "blobs files blob_bytes saved_bytes", saved bytes being
+     * those the files sharing a blob would take as copies.
+     * 
+     * @return
+     */
+    public synchronized String getStats() {
+        long files = 0;
+        long blobBytes = 0;
+        long savedBytes = 0;
+        for (Entry<String, Integer> entry: references.entrySet()) {
+            long storedSize = contents.get(entry.getKey()).getStoredSize();
+            files += entry.getValue();
+            blobBytes += storedSize;
+            savedBytes += (entry.getValue() - 1) * storedSize;
+        }
+        return references.size() + " " + files + " " + blobBytes + " " + savedBytes;
+    }
+}
+
+/**
+ * Class file content.
+ */
+class FileContent {
+    private String filename;
+    private long filesize;
+    private long checksum;
+    private String codec;
+    private long storedSize;
+    private FileChannel fileChannel;
+    private Compression compression;
+    private byte[] first;
+    private int firstLength;
+    private CompressedFile compressedFile;
+    private MessageDigest digest;
+    private String blob;
+
+    /**
+     * Constructor.
+     * 
+     * @param filename
+     * @param filesize
+     * @param fileFolder
+     */
+    public FileContent(String filename, long filesize, String fileFolder) {
+        this(filename, filesize, fileFolder, null, false);
+    }
+
+    /**
+     * Constructor of a file compressed on ingest if worth it.
+     * 
+     * @param filename
+     * @param filesize
+     * @param fileFolder
+     * @param compression null to store as is
+     * @param dedup hash the content for the blob store
+     */
+    public FileContent(String filename, long filesize, String fileFolder, Compression compression, boolean dedup) {
+        this.filename = filename;
+        this.filesize = filesize;
+        this.storedSize = filesize;
+        this.compression = compression;
+        this.digest = dedup ? BlobStore.newDigest() : null;
+        try {
+            if (dedup) {
+                // An old copy may be a link to a blob, which must not be truncated.
+                Files.deleteIfExists(Paths.get(fileFolder, filename));
+            }
+            this.fileChannel = FileChannel.open(Paths.get(fileFolder, filename),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Constructor of a file already on disk.
+     * 
+     * @param filename
+     * @param filesize
+     * @param checksum
+     */
+    public FileContent(String filename, long filesize, long checksum) {
+        this(filename, filesize, checksum, null, filesize, null);
+    }
+
+    /**
+     * Constructor of a file already on disk, stored with a codec.
+     * 
+     * @param filename
+     * @param filesize
+     * @param checksum
+     * @param codec null if stored as is
+     * @param storedSize
+     * @param blob null if not in the blob store
+     */
+    public FileContent(String filename, long filesize, long checksum, String codec, long storedSize, String blob) {
+        this.filename = filename;
+        this.filesize = filesize;
+        this.checksum = checksum;
+        this.codec = codec;
+        this.storedSize = storedSize;
+        this.blob = blob;
+    }
+
+    /**
+     * Get filename.
+     * 
+     * @return
+     */
+    public String getfilename() {
+        return filename;
+    }
+
+    /**
+     * Get file size.
+     * 
+     * @return
+     */
+    public long getFilesize() {
+        return filesize;
+    }
+
+    /**
+     * Get codec.
+     * 
+     * @return null if stored as is
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Get stored size, the bytes on disk.
+     * 
+     * @return
+     */
+    public long getStoredSize() {
+        return storedSize;
+    }
+
+    /**
+     * Set how the content is stored, once the file is linked to a blob
+     * stored by another.
+     * 
+     * @param codec
+     * @param storedSize
+     */
+    public void setStored(String codec, long storedSize) {
+        this.codec = codec;
+        this.storedSize = storedSize;
+    }
+
+    /**
+     * Get blob, the SHA-256 of the content in hex.
+     * 
+     * @return null if the file is not in the blob store
+     */
+    public String getBlob() {
+        return blob;
+    }
+
+    /**
+     * Set blob.
+     * 
+     * @param blob
+     */
+    public void setBlob(String blob) {
+        this.blob = blob;
+    }
+
+    /**
+     * Get checksum, the CRC32C of the content once written.
+     * 
+     * @return
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Store a chunk. With compression on the first block is held back until
+     * a trial of it decides whether the file is compressed.
+     * 
+     * @param buffer
+     * @throws IOException
+     */
+    private void store(ByteBuffer buffer) throws IOException {
+        if (compression != null && compressedFile == null && firstLength < filesize && firstLength < CompressedFile.BLOCK_SIZE) {
+            if (first == null) {
+                first = new byte[(int) Math.min(filesize, CompressedFile.BLOCK_SIZE)];
+            }
+            int length = Math.min(buffer.remaining(), first.length - firstLength);
+            buffer.get(first, firstLength, length);
+            firstLength += length;
+            if (firstLength < first.length) {
+                return;
+            }
+            ByteBuffer held = ByteBuffer.wrap(first);
+            if (CompressedFile.trial(first, first.length, compression)) {
+                compressedFile = new CompressedFile(fileChannel, compression);
+                compressedFile.write(held);
+            } else {
+                while (held.hasRemaining()) {
+                    fileChannel.write(held);
+                }
+            }
+            first = null;
+        }
+        if (compressedFile != null) {
+            compressedFile.write(buffer);
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+    }
+
+    /**
+     * Write file content. Bytes are copied from the socket to disk through
+     * one pooled buffer as they arrive, so heap use does not grow with the
+     * file size.
+     * 
+     * @param channel
+     * @return
+     */
+    public boolean writeContent(ReadableByteChannel channel) {
+        return writeContent(channel, null);
+    }
+
+    /**
+     * Write file content, forwarding every chunk to the next dstore of a
+     * store chain before writing it here. If the next dstore fails the file
+     * is still written here.
+     * 
+     * @param channel
+     * @param forward null if not forwarding
+     * @return
+     */
+    public boolean writeContent(ReadableByteChannel channel, WritableByteChannel forward) {
+        if (fileChannel == null) {
+            return false;
+        }
+        ByteBuffer buffer = BufferPool.acquire();
+        CRC32C crc = new CRC32C();
+        try {
+            long remaining = filesize;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("File " + filename + " ended " + remaining + " bytes early.");
+                }
+                buffer.flip();
+                if (forward != null) {
+                    try {
+                        ByteBuffer copy = buffer.duplicate();
+                        while (copy.hasRemaining()) {
+                            forward.write(copy);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        forward = null;
+                    }
+                }
+                crc.update(buffer.duplicate());
+                if (digest != null) {
+                    digest.update(buffer.duplicate());
+                }
+                store(buffer);
+                remaining -= read;
+            }
+            if (compressedFile != null) {
+                storedSize = compressedFile.finish();
+                codec = CompressedFile.CODEC;
+                System.out.println("Compressed " + filename + " from " + filesize + " to " + storedSize + " bytes.");
+            }
+            checksum = crc.getValue();
+            if (digest != null) {
+                blob = BlobStore.toBlob(digest.digest());
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            BufferPool.release(buffer);
+            first = null;
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+/**
+ * Store thread.
+ */
+class StoreThread extends Thread {
+
+    private Socket socket;
+    private Dstore dstore;
+    private InputStream in;
+    private BufferedReader input;
+    private PrintWriter output;
+    private FileContent fileContent;
+
+    /**
+     * Constructor.
+     * 
+     * @param socket
+     * @param dstore
+     */
+    public StoreThread(Socket socket, Dstore dstore) {
+        this.socket = socket;
+        this.dstore = dstore;
+        this.fileContent = null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            in = socket.getInputStream();
+            input = new BufferedReader(new InputStreamReader(in));
+            output = new PrintWriter(socket.getOutputStream());
+            while (true) {
+                if (input == null) {
+                    return;
+                }
+                String command = input.readLine();
+                if (command == null) {
+                    input.close();
+                    output.close();
+                    return;
+                }
+                System.out.println("Recv from client: " + command);
+                String token = command.split(" ")[0];
+                if (token.equals(Protocol.STORE_TOKEN) || token.equals(Protocol.REBALANCE_STORE_TOKEN)
+                        || token.equals(Protocol.STORE_DEFLATE_TOKEN) || token.equals(Protocol.REBALANCE_STORE_DEFLATE_TOKEN)) {
+                    handleStore(command);
+                } else if (token.equals(Protocol.REBALANCE_STORE_TOKEN)) {
+                    handleRebalanceStore(command);
+                } else if (token.equals(Protocol.LOAD_DATA_TOKEN) || token.equals(Protocol.LOAD_DATA_RANGE_TOKEN)
+                        || token.equals(Protocol.LOAD_DATA_DEFLATE_TOKEN) || token.equals(Protocol.LOAD_DATA_RANGE_DEFLATE_TOKEN)) {
+                    handleDataLoad(command);
+                } else if (token.equals(Protocol.REMOVE_TOKEN)) {
+                    handleRemove(command);
+                } else if (token.equals(Protocol.LIST_TOKEN)) {
+                    handleList(command);
+                } else if (token.equals(Protocol.LIST_PAGE_TOKEN)) {
+                    handleListPage(command);
+                } else if (token.equals(Protocol.CACHE_STATS_TOKEN)) {
+                    handleCacheStats();
+                } else if (token.equals(Protocol.COMPRESS_STATS_TOKEN)) {
+                    handleCompressStats();
+                } else if (token.equals(Protocol.WIRE_STATS_TOKEN)) {
+                    handleWireStats();
+                } else if (token.equals(Protocol.DEDUP_STATS_TOKEN)) {
+                    handleDedupStats();
+                } else if (token.equals(Protocol.REBALANCE_TOKEN)) {
+                    handleRebalance(command);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Handle command STORE.
+     * 
+     * @param command
+     */
+    private void handleStore(String command) {
+        String[] tokens = command.split(" ");
+        // Deflated only if asked for and wire compression is on here.
+        boolean deflate = (tokens[0].equals(Protocol.STORE_DEFLATE_TOKEN) || tokens[0].equals(Protocol.REBALANCE_STORE_DEFLATE_TOKEN))
+                && dstore.isWireCompress();
+        if (tokens.length < 3) {
+            return;
+        }
+        String filename = tokens[1];
+        long filesize = Long.valueOf(tokens[2]);
+        if (filesize < 0) {
+            return;
+        }
+        String ack = deflate ? Protocol.ACK_TOKEN + " " + Protocol.DEFLATE_FLAG : Protocol.ACK_TOKEN;
+        ReadableByteChannel channel = FileTransfer.inputChannel(socket, in);
+        if (deflate) {
+            channel = new InflatingChannel(channel, filesize, dstore.getWireReceived());
+        }
+        Compression wire = dstore.isWireCompress() ? dstore.getWireSent() : null;
+        ShardLayout layout = tokens.length == 3 ? dstore.takeLayout(filename) : null;
+        if (layout != null && layout.getFilesize() == filesize) {
+            // Erasure coded, only the shards are stored.
+            output.println(ack);
+            output.flush();
+            ArrayList<Integer> lost = ShardWriter.encode(channel, layout, dstore.getTimeout(), wire);
+            if (lost != null && !lost.isEmpty()) {
+                // The controller has the file repaired, or fails the STORE if it cannot be decoded.
+                StringBuilder stringBuilder = new StringBuilder(Protocol.SHARDS_LOST_TOKEN + " " + filename);
+                for (int index: lost) {
+                    stringBuilder.append(" ");
+                    stringBuilder.append(index);
+                }
+                PrintWriter controllerOutput = dstore.getControllerOutput();
+                controllerOutput.println(stringBuilder.toString());
+                controllerOutput.flush();
+            }
+            return;
+        }
+        // A chain forward racing the client's own upload of the file finds it taken, so only one is written.
+        if (!dstore.beginStore(filename)) {
+            output.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+            output.flush();
+            return;
+        }
+        try {
+            // Ports to forward to follow the size from a dstore, the head has them from CHAIN.
+            String[] chain = tokens.length > 3 ? Arrays.copyOfRange(tokens, 3, tokens.length) : dstore.takeChain(filename, filesize);
+            WritableByteChannel next = null;
+            if (chain != null) {
+                try {
+                    next = FileTransfer.openChain(filename, filesize, chain, dstore.getTimeout(), wire);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            fileContent = new FileContent(filename, filesize, dstore.getFileFolder(), dstore.getCompression(), dstore.isDedup());
+            dstore.addFile(fileContent);
+            output.println(ack);
+            output.flush();
+
+            boolean written = fileContent.writeContent(channel, next);
+            if (next != null) {
+                try {
+                    next.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (!written) {
+                dstore.abortFile(fileContent);
+                return;
+            }
+            if (!dstore.completeFile(fileContent)) {
+                return;
+            }
+        } finally {
+            dstore.endStore(filename);
+        }
+
+        PrintWriter controllerOutput = dstore.getControllerOutput();
+        controllerOutput.println(Protocol.STORE_ACK_TOKEN + " " + fileContent.getfilename() + " " + fileContent.getChecksum()
+                + (fileContent.getBlob() == null ? "" : " " + fileContent.getBlob()));
+        controllerOutput.flush();
+    }
+
+    private void handleRebalanceStore(String command) {
+        String[] tokens = command.split(" ");
+        if (tokens.length != 3) {
+            return;
+        }
+        String filename = tokens[1];
+        long filesize = Long.valueOf(tokens[2]);
+        if (filesize < 0) {
+            return;
+        }
+        fileContent = new FileContent(filename, filesize, dstore.getFileFolder(), dstore.getCompression(), dstore.isDedup());
+        dstore.addFile(fileContent);
+        output.println(Protocol.ACK_TOKEN);
+        output.flush();
+
+        if (fileContent.writeContent(FileTransfer.inputChannel(socket, in))) {
+            dstore.completeFile(fileContent);
+        } else {
+            dstore.abortFile(fileContent);
+        }
+    }
+
+    /**
+     * Handle command LOAD_DATA
+     * @param command
+     */
+    private void handleDataLoad(String command) {
+        String[] tokens = command.split(" ");
+        boolean ranged = tokens[0].equals(Protocol.LOAD_DATA_RANGE_TOKEN) || tokens[0].equals(Protocol.LOAD_DATA_RANGE_DEFLATE_TOKEN);
+        boolean deflate = tokens[0].equals(Protocol.LOAD_DATA_DEFLATE_TOKEN) || tokens[0].equals(Protocol.LOAD_DATA_RANGE_DEFLATE_TOKEN);
+        if (tokens.length != (ranged ? 4 : 2)) {
+            return;
+        }
+        String filename = tokens[1];
+        try {
+            long filesize = this.dstore.getFilesize(filename);
+            long offset = ranged ? Long.valueOf(tokens[2]) : 0;
+            long length = ranged ? Long.valueOf(tokens[3]) : filesize;
+            WritableByteChannel target = FileTransfer.outputChannel(socket);
+            if (deflate) {
+                target = new DeflatingChannel(target, dstore.getWireSent());
+            }
+            // A range past the end is cut short, one starting past it gets nothing.
+            if (filesize >= 0 && offset >= 0 && offset <= filesize && length >= 0) {
+                dstore.sendFile(filename, filesize, offset, Math.min(length, filesize - offset), target);
+            } else if (filesize < 0 && !ranged) {
+                sendDecoded(filename, target);
+            }
+            target.close();
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Send an erasure coded file decoded from its shards, if the controller
+     * sent its layout for this load.
+     * 
+     * @param filename
+     * @param target
+     * @throws IOException
+     */
+    private void sendDecoded(String filename, WritableByteChannel target) throws IOException {
+        ShardLayout layout = dstore.getLayout(filename);
+        if (layout == null) {
+            return;
+        }
+        ByteBuffer buffer = BufferPool.acquire();
+        try (ShardReader shardReader = new ShardReader(layout, -1, dstore.getTimeout(), dstore.isWireCompress() ? dstore.getWireReceived() : null)) {
+            while (shardReader.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Handle command REMOVE.
+     * 
+     * @param command
+     */
+    private void handleRemove(String command) {
+        String[] tokens = command.split(" ");
+        if (tokens.length != 2) {
+            return;
+        }
+        String filename = tokens[1];
+        if (dstore.deleteFile(filename)) {
+            output.println(Protocol.REMOVE_ACK_TOKEN + " " + filename);
+        } else {
+            output.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + filename);
+        }
+        output.flush();
+    }
+
+    /**
+     * Handle command LIST>
+     * 
+     * @param command
+     */
+    private void handleList(String command) {
+        String filenames = dstore.listFile();
+        output.println(Protocol.LIST_TOKEN + " " + filenames);
+        output.flush();
+    }
+
+    /**
+     * Handle command CACHE_STATS.
+     */
+    private void handleCacheStats() {
+        HotCache hotCache = dstore.getHotCache();
+        output.println(Protocol.CACHE_STATS_TOKEN + " " + (hotCache == null ? "0 0 0 0" : hotCache.getStats()));
+        output.flush();
+    }
+
+    /**
+     * Handle command COMPRESS_STATS.
+     */
+    private void handleCompressStats() {
+        Compression compression = dstore.getCompression();
+        output.println(Protocol.COMPRESS_STATS_TOKEN + " " + (compression == null ? "0 0 0" : compression.getStats()));
+        output.flush();
+    }
+
+    /**
+     * Handle command DEDUP_STATS.
+     */
+    private void handleDedupStats() {
+        BlobStore blobStore = dstore.getBlobStore();
+        output.println(Protocol.DEDUP_STATS_TOKEN + " " + (blobStore == null ? "0 0 0 0" : blobStore.getStats()));
+        output.flush();
+    }
+
+    /**
+     * Handle command WIRE_STATS.
+     */
+    private void handleWireStats() {
+        output.println(Protocol.WIRE_STATS_TOKEN + " " + dstore.getWireSent().getStats() + " " + dstore.getWireReceived().getStats());
+        output.flush();
+    }
+
+    /**
+     * Handle command LIST_PAGE.
+     * 
+     * @param command
+     */
+    private void handleListPage(String command) {
+        ListPage listPage = ListPage.parse(command);
+        if (listPage == null) {
+            return;
+        }
+        output.println(dstore.listFile(listPage));
+        output.flush();
+    }
+
+    /**
+     * Handle command REBALANCE.
+     * 
+     * @param command
+     */
+    private void handleRebalance(String command) {
+        String[] parts = command.split(" ");
+        int num = 1;
+        int numberToSend = Integer.valueOf(parts[num++]);
+        ArrayList<Runnable> transfers = new ArrayList<>();
+        for (int i = 0; i < numberToSend; i++) {
+            String filename = parts[num++];
+            int portToSend = Integer.valueOf(parts[num++]);
+            for (int j = 0; j < portToSend; j++) {
+                int dport = Integer.valueOf(parts[num++]);
+                transfers.add(() -> dstore.rebalanceSend(filename, dport));
+            }
+        }
+        dstore.runTransfers(transfers);
+        int numberToRemove = Integer.valueOf(parts[num++]);
+        for (int i = 0; i < numberToRemove; i++) {
+            String filename = parts[num++];
+            this.dstore.deleteFile(filename);
+        }
+        output.println(Protocol.REBALANCE_COMPLETE_TOKEN);
+        output.flush();
+    }
+}
+
+/**
+ * Class dstore.
+ */
+public class Dstore {
+    private static final int ADVERTISE_PAGE = 1000;
+
+    private int port;
+    private int cport;
+    private int timeout;
+    private String fileFolder;
+    private TreeMap<String, FileContent> files;
+    private BufferedReader controllerInput;
+    private PrintWriter controllerOutput;
+    private ReadWriteLock readWriteLock;
+    private int spacePeriod;
+    private HotCache hotCache;
+    private String readEngine;
+    private MappedFiles mappedFiles;
+    private Manifest manifest;
+    private ConcurrentHashMap<String, StoreChain> chains;
+    private Set<String> storing;
+    private ConcurrentHashMap<String, FileContent> inProgress;
+    private ConcurrentHashMap<String, ShardLayout> layouts;
+    private Compression compression;
+    private boolean wireCompress;
+    private Compression wireSent;
+    private Compression wireReceived;
+    private BlobStore blobStore;
+    private ExecutorService transferPool;
+
+    /**
+     * Constructor.
+     * 
+     * @param port
+     * @param cport
+     * @param timeout
+     * @param fileFolder
+     * @param options
+     */
+    public Dstore(int port, int cport, int timeout, String fileFolder, Options options) {
+        this.port = port;
+        this.cport = cport;
+        this.timeout = timeout;
+        this.fileFolder = fileFolder;
+        this.files = new TreeMap<>();
+        this.readWriteLock = new ReentrantReadWriteLock();
+        this.chains = new ConcurrentHashMap<>();
+        this.storing = ConcurrentHashMap.newKeySet();
+        this.inProgress = new ConcurrentHashMap<>();
+        this.layouts = new ConcurrentHashMap<>();
+        this.spacePeriod = options.getInt("space-period", 10000);
+        long cacheBytes = options.getLong("cache-bytes", 0);
+        if (cacheBytes > 0) {
+            this.hotCache = new HotCache(cacheBytes, options.getLong("cache-max-object", 1024 * 1024));
+        }
+        this.readEngine = options.get("read-engine", "transfer");
+        if (readEngine.equals("mmap")) {
+            this.mappedFiles = new MappedFiles(options.getInt("mmap-files", 256), options.getLong("mmap-bytes", 1L << 30));
+        }
+        if (options.has("persist")) {
+            this.manifest = new Manifest(fileFolder);
+        }
+        if (options.has("compress")) {
+            this.compression = new Compression(options.getInt("compress-level", Deflater.BEST_SPEED),
+                    Double.valueOf(options.get("compress-ratio", "1.2")));
+        }
+        this.wireCompress = options.has("wire-compress");
+        this.wireSent = new Compression(options.getInt("wire-level", Deflater.BEST_SPEED), Double.valueOf(options.get("compress-ratio", "1.2")));
+        this.wireReceived = new Compression(0, 1);
+        if (options.has("dedup")) {
+            this.blobStore = new BlobStore(fileFolder);
+        }
+        this.transferPool = Executors.newFixedThreadPool(options.getInt("transfer-threads", 8));
+
+        this.initFileFolder();
+        this.handleController();
+        this.handleSpace();
+        this.handleRequest();
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param port
+     * @param cport
+     * @param timeout
+     * @param fileFolder
+     */
+    public Dstore(int port, int cport, int timeout, String fileFolder) {
+        this(port, cport, timeout, fileFolder, new Options());
+    }
+
+    /**
+     * Get controll port.
+     * 
+     * @return
+     */
+    public int getCport() {
+        return cport;
+    }
+
+    /**
+     * Get port.
+     * 
+     * @return
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get timeout.
+     * 
+     * @return
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Get file folder.
+     * 
      * @return
      */
-    public int getCport() {
-        return cport;
+    public String getFileFolder() {
+        return fileFolder;
     }
 
     /**
-     * Get port.
+     * Get compression.
+     * 
+     * @return null if files are stored as is
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Is deduplicating, keeping file content in the blob store.
      * 
      * @return
      */
-    public int getPort() {
-        return port;
+    public boolean isDedup() {
+        return blobStore != null;
     }
 
     /**
-     * Get timeout.
+     * Get blob store.
+     * 
+     * @return null if not deduplicating
+     */
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * Is wire compression on, asking for deflated transfers and accepting
+     * them on STORE.
      * 
      * @return
      */
-    public int getTimeout() {
-        return timeout;
+    public boolean isWireCompress() {
+        return wireCompress;
     }
 
     /**
-     * Get file folder.
+     * Get wire compression of what this dstore sends deflated.
      * 
      * @return
      */
-    public String getFileFolder() {
-        return fileFolder;
+    public Compression getWireSent() {
+        return wireSent;
+    }
+
+    /**
+     * Get wire stats of what this dstore received deflated.
+     * 
+     * @return
+     */
+    public Compression getWireReceived() {
+        return wireReceived;
     }
 
     /**
@@ -598,14 +3210,140 @@ public class Dstore {
     }
 
     /**
-     * Add file.
+     * Add file about to be written. It is kept apart from the files until
+     * complete, so nothing reads, lists or sends it half written, and an
+     * older copy is dropped now since its content is being overwritten.
      * 
      * @param fileContent
      */
     public void addFile(FileContent fileContent) {
+        String filename = fileContent.getfilename();
+        readWriteLock.writeLock().lock();
+        FileContent old = this.files.remove(filename);
+        inProgress.put(filename, fileContent);
+        readWriteLock.writeLock().unlock();
+        if (old != null) {
+            dropFile(old);
+        }
+    }
+
+    /**
+     * Drop a file replaced or removed from the file list.
+     * 
+     * @param fileContent
+     */
+    private void dropFile(FileContent fileContent) {
+        if (blobStore != null && fileContent.getBlob() != null) {
+            blobStore.release(fileContent.getBlob());
+        }
+        if (manifest != null) {
+            manifest.remove(fileContent.getfilename());
+        }
+        if (hotCache != null) {
+            hotCache.invalidate(fileContent.getfilename());
+        }
+        if (mappedFiles != null) {
+            mappedFiles.invalidate(fileContent.getfilename());
+        }
+    }
+
+    /**
+     * Put a complete file into the file list, readable from now on.
+     * 
+     * @param fileContent
+     * @param written true if it was added and written here, false if linked
+     * @return false if it was removed or replaced while being written
+     */
+    private boolean putFile(FileContent fileContent, boolean written) {
+        String filename = fileContent.getfilename();
         readWriteLock.writeLock().lock();
-        this.files.put(fileContent.getfilename(), fileContent);
+        boolean current = !written || inProgress.remove(filename, fileContent);
+        FileContent old = current ? this.files.put(filename, fileContent) : null;
         readWriteLock.writeLock().unlock();
+        if (!current) {
+            if (blobStore != null && fileContent.getBlob() != null) {
+                blobStore.release(fileContent.getBlob());
+            }
+            return false;
+        }
+        if (old != null) {
+            dropFile(old);
+        }
+        if (manifest != null) {
+            manifest.add(fileContent);
+        }
+        if (hotCache != null) {
+            hotCache.invalidate(filename);
+        }
+        if (mappedFiles != null) {
+            mappedFiles.invalidate(filename);
+        }
+        return true;
+    }
+
+    /**
+     * Is persistent, keeping files across restarts.
+     * 
+     * @return
+     */
+    public boolean isPersistent() {
+        return manifest != null;
+    }
+
+    /**
+     * Get ADVERTISE pages of all files, "ADVERTISE more" then name, size and
+     * checksum of up to ADVERTISE_PAGE files each.
+     * 
+     * @return
+     */
+    public ArrayList<String> getAdvertisePages() {
+        ArrayList<String> pages = new ArrayList<>();
+        readWriteLock.readLock().lock();
+        StringBuilder stringBuilder = new StringBuilder();
+        int count = 0;
+        for (FileContent fileContent: files.values()) {
+            stringBuilder.append(" ");
+            stringBuilder.append(fileContent.getfilename());
+            stringBuilder.append(" ");
+            stringBuilder.append(fileContent.getFilesize());
+            stringBuilder.append(" ");
+            stringBuilder.append(fileContent.getChecksum());
+            if (++count % ADVERTISE_PAGE == 0 && count < files.size()) {
+                pages.add(Protocol.ADVERTISE_TOKEN + " 1" + stringBuilder.toString());
+                stringBuilder = new StringBuilder();
+            }
+        }
+        readWriteLock.readLock().unlock();
+        pages.add(Protocol.ADVERTISE_TOKEN + " 0" + stringBuilder.toString());
+        return pages;
+    }
+
+    /**
+     * Complete file once its content is written, making it readable.
+     * 
+     * @param fileContent
+     * @return false if it was removed or replaced while being written
+     */
+    public boolean completeFile(FileContent fileContent) {
+        if (inProgress.get(fileContent.getfilename()) != fileContent) {
+            return false;
+        }
+        if (blobStore != null && fileContent.getBlob() != null && blobStore.add(fileContent, Paths.get(fileFolder, fileContent.getfilename()))) {
+            System.out.println("Deduplicated " + fileContent.getfilename() + " to blob " + fileContent.getBlob() + ".");
+        }
+        return putFile(fileContent, true);
+    }
+
+    /**
+     * Abort a file whose content could not be written, deleting it unless
+     * a newer copy is being written over it.
+     * 
+     * @param fileContent
+     */
+    public void abortFile(FileContent fileContent) {
+        if (inProgress.remove(fileContent.getfilename(), fileContent)) {
+            new File(fileFolder + File.separator + fileContent.getfilename()).delete();
+        }
     }
 
     /**
@@ -615,14 +3353,94 @@ public class Dstore {
      * @return
      */
     public boolean removeFile(String filename) {
-        boolean ret = false;
         readWriteLock.writeLock().lock();
-        if (this.files.containsKey(filename)) {
-            this.files.remove(filename);
-            ret = true;
-        }
+        FileContent fileContent = this.files.remove(filename);
+        FileContent writing = inProgress.remove(filename);
         readWriteLock.writeLock().unlock();
-        return ret;
+        if (fileContent != null) {
+            dropFile(fileContent);
+        }
+        return fileContent != null || writing != null;
+    }
+
+    /**
+     * Link a new file to the blob of content already here, storing it
+     * without a transfer.
+     * 
+     * @param filename
+     * @param filesize
+     * @param blob
+     * @return null if the blob is not here or the file is
+     */
+    public FileContent linkFile(String filename, long filesize, String blob) {
+        if (blobStore == null || hasFile(filename)) {
+            return null;
+        }
+        FileContent fileContent = blobStore.link(filename, filesize, blob, Paths.get(fileFolder, filename));
+        if (fileContent == null) {
+            return null;
+        }
+        putFile(fileContent, false);
+        return fileContent;
+    }
+
+    /**
+     * Delete file from disk and the file list.
+     * 
+     * @param filename
+     * @return false if the file was not listed
+     */
+    public boolean deleteFile(String filename) {
+        new File(fileFolder + File.separator + filename).delete();
+        return removeFile(filename);
+    }
+
+    /**
+     * Send length bytes of a stored file from offset to a socket, from the
+     * hot cache if it holds the file, else through the read engine. A
+     * compressed file is inflated block by block instead.
+     * 
+     * @param filename
+     * @param filesize
+     * @param offset
+     * @param length
+     * @param target
+     * @throws IOException
+     */
+    public void sendFile(String filename, long filesize, long offset, long length, WritableByteChannel target) throws IOException {
+        String path = fileFolder + File.separator + filename;
+        if (isCompressed(filename)) {
+            CompressedFile.send(path, offset, length, target);
+            return;
+        }
+        ByteBuffer cached = hotCache == null ? null : hotCache.get(filename, path, filesize);
+        if (cached != null) {
+            FileTransfer.sendBuffer(cached, offset, length, target);
+            return;
+        }
+        FileMapping mapping = mappedFiles == null ? null : mappedFiles.acquire(filename, path, filesize);
+        if (mapping != null) {
+            try {
+                FileTransfer.sendBuffer(mapping.getBuffer(), offset, length, target);
+            } finally {
+                mapping.release();
+            }
+        } else if (readEngine.equals("stream")) {
+            OutputStream outputStream = Channels.newOutputStream(target);
+            FileTransfer.streamFile(path, offset, length, outputStream);
+            outputStream.flush();
+        } else {
+            FileTransfer.sendFile(path, offset, length, target);
+        }
+    }
+
+    /**
+     * Get hot cache.
+     * 
+     * @return null if caching is off
+     */
+    public HotCache getHotCache() {
+        return hotCache;
     }
 
     /**
@@ -642,14 +3460,54 @@ public class Dstore {
     }
 
     /**
-     * Get file size.
+     * List one page of files, in name order.
+     * 
+     * @param listPage
+     * @return
+     */
+    public String listFile(ListPage listPage) {
+        readWriteLock.readLock().lock();
+        String reply = listPage.getReply(files.navigableKeySet());
+        readWriteLock.readLock().unlock();
+        return reply;
+    }
+
+    /**
+     * Is compressed on disk.
+     * 
+     * @param filename
+     * @return
+     */
+    public boolean isCompressed(String filename) {
+        readWriteLock.readLock().lock();
+        FileContent fileContent = files.get(filename);
+        boolean compressed = fileContent != null && fileContent.getCodec() != null;
+        readWriteLock.readLock().unlock();
+        return compressed;
+    }
+
+    /**
+     * Has file, complete or being written.
      * 
      * @param filename
      * @return
      */
-    public int getFilesize(String filename) {
+    public boolean hasFile(String filename) {
         readWriteLock.readLock().lock();
-        int size = -1;
+        boolean has = files.containsKey(filename) || inProgress.containsKey(filename);
+        readWriteLock.readLock().unlock();
+        return has;
+    }
+
+    /**
+     * Get file size.
+     * 
+     * @param filename
+     * @return -1 if there is no complete file
+     */
+    public long getFilesize(String filename) {
+        readWriteLock.readLock().lock();
+        long size = -1;
         if (files.containsKey(filename)) {
             size = files.get(filename).getFilesize();
         }
@@ -657,6 +3515,202 @@ public class Dstore {
         return size;
     }
 
+    /**
+     * Put the chain a coming STORE of a file is forwarded down. A chain
+     * arriving past the controller's deadline, or after the file, is
+     * dropped, the client was told to store to every dstore itself. Dstores
+     * run on the controller's host, so they share its clock.
+     * 
+     * @param filename
+     * @param filesize
+     * @param deadline time the controller stops waiting for CHAIN_ACK
+     * @param ports
+     * @return false if dropped
+     */
+    public boolean putChain(String filename, long filesize, long deadline, String[] ports) {
+        if (System.currentTimeMillis() > deadline || hasFile(filename)) {
+            return false;
+        }
+        chains.put(filename, new StoreChain(filesize, ports, deadline + timeout));
+        return true;
+    }
+
+    /**
+     * Cancel the chain of a file, the controller gave up waiting for it.
+     * 
+     * @param filename
+     */
+    public void cancelChain(String filename) {
+        chains.remove(filename);
+    }
+
+    /**
+     * Begin a STORE of a file.
+     * 
+     * @param filename
+     * @return false if another STORE of it is running here
+     */
+    public boolean beginStore(String filename) {
+        return storing.add(filename);
+    }
+
+    /**
+     * End a STORE of a file.
+     * 
+     * @param filename
+     */
+    public void endStore(String filename) {
+        storing.remove(filename);
+    }
+
+    /**
+     * Put the shard layout of a coming STORE or LOAD_DATA of an erasure
+     * coded file.
+     * 
+     * @param layout
+     */
+    public void putLayout(ShardLayout layout) {
+        long now = System.currentTimeMillis();
+        layouts.values().removeIf(old -> old.getDeadline() < now);
+        layouts.put(layout.getFilename(), layout);
+    }
+
+    /**
+     * Take the shard layout of a STORE from a client.
+     * 
+     * @param filename
+     * @return null if the file is not erasure coded
+     */
+    public ShardLayout takeLayout(String filename) {
+        ShardLayout layout = layouts.remove(filename);
+        if (layout == null || layout.getDeadline() < System.currentTimeMillis()) {
+            return null;
+        }
+        return layout;
+    }
+
+    /**
+     * Get the shard layout of a LOAD_DATA from a client. It stays until its
+     * deadline, as several clients may load the file through this dstore.
+     * 
+     * @param filename
+     * @return null if the file is not erasure coded
+     */
+    public ShardLayout getLayout(String filename) {
+        ShardLayout layout = layouts.get(filename);
+        if (layout == null || layout.getDeadline() < System.currentTimeMillis()) {
+            return null;
+        }
+        return layout;
+    }
+
+    /**
+     * Take the chain of a STORE from a client.
+     * 
+     * @param filename
+     * @param filesize
+     * @return null if the file is not chained
+     */
+    public String[] takeChain(String filename, long filesize) {
+        StoreChain chain = chains.remove(filename);
+        if (chain == null || chain.getFilesize() != filesize || chain.getDeadline() < System.currentTimeMillis()) {
+            return null;
+        }
+        return chain.getPorts();
+    }
+
+    /**
+     * Send a file to another dstore with REBALANCE_STORE.
+     * 
+     * @param filename
+     * @param dport
+     */
+    public void rebalanceSend(String filename, int dport) {
+        try (Socket socket = SocketChannel.open().socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", dport), timeout);
+            socket.setSoTimeout(timeout);
+            BufferedReader dinput = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter doutput = new PrintWriter(socket.getOutputStream());
+            long filesize = getFilesize(filename);
+            doutput.println((wireCompress ? Protocol.REBALANCE_STORE_DEFLATE_TOKEN : Protocol.REBALANCE_STORE_TOKEN) + " " + filename + " " + filesize);
+            doutput.flush();
+            String response = dinput.readLine();
+            if (response == null) {
+                System.out.println("Port " + dport + " closed before ACK, " + filename + " not sent.");
+            } else if (response.equals(Protocol.ACK_TOKEN + " " + Protocol.DEFLATE_FLAG)) {
+                DeflatingChannel target = new DeflatingChannel(socket.getChannel(), wireSent);
+                sendFile(filename, filesize, 0, filesize, target);
+                target.close();
+            } else if (response.startsWith(Protocol.ACK_TOKEN)) {
+                sendFile(filename, filesize, 0, filesize, socket.getChannel());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run rebalance transfers and wait for all of them. Virtual threads
+     * take a thread per transfer, platform threads run at most
+     * --transfer-threads at once.
+     * 
+     * @param transfers
+     */
+    public void runTransfers(ArrayList<Runnable> transfers) {
+        if (Threads.isVirtual()) {
+            ArrayList<Thread> threads = new ArrayList<>();
+            for (Runnable transfer: transfers) {
+                threads.add(Threads.start(transfer));
+            }
+            joinAll(threads);
+            return;
+        }
+        ArrayList<Future<?> > futures = new ArrayList<>();
+        for (Runnable transfer: transfers) {
+            futures.add(transferPool.submit(transfer));
+        }
+        for (Future<?> future: futures) {
+            try {
+                future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Wait for threads to finish.
+     * 
+     * @param threads
+     */
+    public static void joinAll(ArrayList<Thread> threads) {
+        for (Thread thread: threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Get space, used and free bytes separated by a space.
+     * 
+     * @return
+     */
+    public String getSpace() {
+        long used = 0;
+        readWriteLock.readLock().lock();
+        for (FileContent fileContent: files.values()) {
+            used += fileContent.getFilesize();
+        }
+        for (FileContent fileContent: inProgress.values()) {
+            used += fileContent.getFilesize();
+        }
+        readWriteLock.readLock().unlock();
+        return used + " " + new File(fileFolder).getUsableSpace();
+    }
+
     /**
      * Delete dir.
      * 
@@ -674,10 +3728,38 @@ public class Dstore {
     }
 
     /**
-     * Init file folder.
+     * Init file folder. A persistent dstore keeps the files its manifest
+     * lists at their journaled size and deletes anything else, such as a
+     * file cut short by a crash.
      */
     private void initFileFolder() {
         File folder = new File(fileFolder);
+        if (manifest != null && (folder.isDirectory() || folder.mkdirs())) {
+            long start = System.currentTimeMillis();
+            TreeMap<String, FileContent> listed = manifest.load();
+            for (File file: folder.listFiles()) {
+                FileContent fileContent = listed.get(file.getName());
+                if (file.isFile() && fileContent != null && file.length() == fileContent.getStoredSize()) {
+                    files.put(file.getName(), fileContent);
+                } else if (file.isDirectory()) {
+                    deleteDir(file);
+                    file.delete();
+                } else {
+                    file.delete();
+                }
+            }
+            if (blobStore != null) {
+                blobStore.restore(files.values(), fileFolder);
+            }
+            try {
+                manifest.open(files.values());
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(0);
+            }
+            System.out.println("Restored " + files.size() + " files in " + (System.currentTimeMillis() - start) + " ms.");
+            return;
+        }
         if (folder.exists()) {
             deleteDir(folder);
             folder.delete();
@@ -686,6 +3768,9 @@ public class Dstore {
             System.err.println("Create " + fileFolder + " failed, exit.");
             System.exit(0);
         }
+        if (blobStore != null) {
+            blobStore.clear();
+        }
     }
 
     /**
@@ -697,19 +3782,32 @@ public class Dstore {
         controllerThread.start();
     }
 
+    /**
+     * Handle space report thread.
+     */
+    private void handleSpace() {
+        SpaceThread spaceThread = new SpaceThread(spacePeriod, this);
+        spaceThread.start();
+    }
+
     /**
      * Handle request thread.
      * 
      */
     private void handleRequest() {
-        ServerSocket serverSocket = null;
+        ServerSocketChannel serverSocket = null;
         try {
-            serverSocket = new ServerSocket(port);
+            serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(port));
             System.out.println("Dstore server listen on port: " + port);
             while (true) {
-                Socket socket = serverSocket.accept();
+                Socket socket = serverSocket.accept().socket();
                 StoreThread StoreThread = new StoreThread(socket, this);
-                StoreThread.start();
+                if (Threads.isVirtual()) {
+                    Threads.start(StoreThread);
+                } else {
+                    StoreThread.start();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -717,15 +3815,17 @@ public class Dstore {
     }
 
     public static void main(String[] args) {
-        if (args.length != 4) {
-            System.out.println("Usage: java Dstore <port> <cport> <timeout> <file_folder>");
+        if (args.length < 4) {
+            System.out.println("Usage: java Dstore <port> <cport> <timeout> <file_folder> [--threads=platform|virtual] [--space-period=<ms>] [--cache-bytes=<n>] [--cache-max-object=<n>] [--read-engine=transfer|stream|mmap] [--mmap-files=<n>] [--mmap-bytes=<n>] [--persist] [--compress] [--compress-level=<0-9>] [--compress-ratio=<r>] [--wire-compress] [--wire-level=<0-9>] [--dedup] [--transfer-threads=<n>]");
             return;
         }
         int port = Integer.valueOf(args[0]);
         int cport = Integer.valueOf(args[1]);
         int timeout = Integer.valueOf(args[2]);
         String fileFolder = args[3];
+        Options options = new Options(args, 4);
+        Threads.configure(options);
 
-        new Dstore(port, cport, timeout, fileFolder);
+        new Dstore(port, cport, timeout, fileFolder, options);
     }
 }
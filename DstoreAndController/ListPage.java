@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.NavigableSet;
+
+/**
+ * One page of a paginated LIST, "LIST_PAGE limit [prefix=p] [after=name]",
+ * answered by "LIST_PAGE more name...", where more is 1 if names past the
+ * last one still match. The last name is the cursor of the next page.
+ */
+public class ListPage {
+    public static final int MAX_LIMIT = 10000;
+
+    private static final String PREFIX = "prefix=";
+    private static final String AFTER = "after=";
+
+    private int limit;
+    private String prefix;
+    private String after;
+
+    /**
+     * Constructor.
+     * 
+     * @param limit
+     * @param prefix
+     * @param after null for the first page
+     */
+    public ListPage(int limit, String prefix, String after) {
+        this.limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+        this.prefix = prefix;
+        this.after = after;
+    }
+
+    /**
+     * Parse request.
+     * 
+     * @param command
+     * @return null if malformed
+     */
+    public static ListPage parse(String command) {
+        String[] tokens = command.split(" ");
+        if (tokens.length < 2 || tokens.length > 4) {
+            return null;
+        }
+        int limit;
+        try {
+            limit = Integer.valueOf(tokens[1]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (limit <= 0) {
+            return null;
+        }
+        String prefix = "";
+        String after = null;
+        for (int i = 2; i < tokens.length; i++) {
+            if (tokens[i].startsWith(PREFIX)) {
+                prefix = tokens[i].substring(PREFIX.length());
+            } else if (tokens[i].startsWith(AFTER)) {
+                after = tokens[i].substring(AFTER.length());
+            } else {
+                return null;
+            }
+        }
+        return new ListPage(limit, prefix, after);
+    }
+
+    /**
+     * Get request.
+     * 
+     * @return
+     */
+    public String getRequest() {
+        StringBuilder stringBuilder = new StringBuilder(Protocol.LIST_PAGE_TOKEN);
+        stringBuilder.append(" ");
+        stringBuilder.append(limit);
+        if (!prefix.isEmpty()) {
+            stringBuilder.append(" ");
+            stringBuilder.append(PREFIX);
+            stringBuilder.append(prefix);
+        }
+        if (after != null) {
+            stringBuilder.append(" ");
+            stringBuilder.append(AFTER);
+            stringBuilder.append(after);
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Get request of the page after a reply.
+     * 
+     * @param reply
+     * @return null if the reply was the last page
+     */
+    public String getNextRequest(String reply) {
+        ArrayList<String> names = getNames(reply);
+        if (!hasMore(reply) || names.isEmpty()) {
+            return null;
+        }
+        return new ListPage(limit, prefix, names.get(names.size() - 1)).getRequest();
+    }
+
+    /**
+     * Get reply from sorted names.
+     * 
+     * @param names
+     * @return
+     */
+    public String getReply(NavigableSet<String> names) {
+        NavigableSet<String> tail = after != null && after.compareTo(prefix) >= 0 ? names.tailSet(after, false) : names.tailSet(prefix, true);
+        StringBuilder stringBuilder = new StringBuilder();
+        int count = 0;
+        boolean more = false;
+        for (String name: tail) {
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            if (count == limit) {
+                more = true;
+                break;
+            }
+            stringBuilder.append(" ");
+            stringBuilder.append(name);
+            count++;
+        }
+        return Protocol.LIST_PAGE_TOKEN + " " + (more ? 1 : 0) + stringBuilder.toString();
+    }
+
+    /**
+     * Is a page reply.
+     * 
+     * @param reply
+     * @return
+     */
+    public static boolean isReply(String reply) {
+        return reply != null && reply.startsWith(Protocol.LIST_PAGE_TOKEN + " ");
+    }
+
+    /**
+     * Has more pages after a reply.
+     * 
+     * @param reply
+     * @return
+     */
+    public static boolean hasMore(String reply) {
+        return reply.split(" ")[1].equals("1");
+    }
+
+    /**
+     * Get names of a reply.
+     * 
+     * @param reply
+     * @return
+     */
+    public static ArrayList<String> getNames(String reply) {
+        ArrayList<String> names = new ArrayList<>();
+        String[] tokens = reply.split(" ");
+        for (int i = 2; i < tokens.length; i++) {
+            names.add(tokens[i]);
+        }
+        return names;
+    }
+}
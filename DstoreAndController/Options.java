@@ -0,0 +1,83 @@
+import java.util.HashMap;
+
+/**
+ * Optional command line switches, given after the positional arguments as
+ * --name=value or --name.
+ */
+public class Options {
+
+    private HashMap<String, String> values;
+
+    /**
+     * Constructor.
+     * 
+     * @param args
+     * @param from first index holding an option
+     */
+    public Options(String[] args, int from) {
+        this.values = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                System.err.println("Ignore unknown argument: " + arg);
+                continue;
+            }
+            int split = arg.indexOf('=');
+            if (split == -1) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+    }
+
+    /**
+     * Constructor without any option.
+     */
+    public Options() {
+        this(new String[0], 0);
+    }
+
+    /**
+     * Has option.
+     * 
+     * @param name
+     * @return
+     */
+    public boolean has(String name) {
+        return values.containsKey(name);
+    }
+
+    /**
+     * Get option.
+     * 
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    public String get(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Get int option.
+     * 
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    public int getInt(String name, int defaultValue) {
+        return values.containsKey(name) ? Integer.valueOf(values.get(name)) : defaultValue;
+    }
+
+    /**
+     * Get long option.
+     * 
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    public long getLong(String name, long defaultValue) {
+        return values.containsKey(name) ? Long.valueOf(values.get(name)) : defaultValue;
+    }
+}
@@ -3,28 +3,60 @@ public class Protocol {
 
 	// messages sent by Clients
 	public final static String LIST_TOKEN = "LIST"; // also from Controller and Dstores
-	public final static String STORE_TOKEN = "STORE"; // also from Dstores
+	public final static String LIST_PAGE_TOKEN = "LIST_PAGE"; // LIST_PAGE limit [prefix=p] [after=name], also from Controller to Dstores
+	public final static String STORE_TOKEN = "STORE"; // STORE filename filesize [digest], the SHA-256 of the content in hex, used by a Controller run with --trust-digests, also from Dstores, STORE filename filesize [port...] forwarding down a chain
+	public final static String STORE_DEFLATE_TOKEN = "STORE_DEFLATE"; // STORE_DEFLATE filename filesize [port...], a STORE offering the content in deflated frames, from Dstores
 	public final static String LOAD_TOKEN = "LOAD";
-	public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
+	public final static String LOAD_DATA_TOKEN = "LOAD_DATA"; // LOAD_DATA filename
+	public final static String LOAD_DATA_DEFLATE_TOKEN = "LOAD_DATA_DEFLATE"; // LOAD_DATA_DEFLATE filename, a LOAD_DATA answered in deflated frames, from Dstores
+	public final static String CACHE_STATS_TOKEN = "CACHE_STATS"; // to a Dstore, replied CACHE_STATS hits misses bytes entries
+	public final static String COMPRESS_STATS_TOKEN = "COMPRESS_STATS"; // to a Dstore, replied COMPRESS_STATS logical_bytes stored_bytes compress_ms of files compressed
+	public final static String DEDUP_STATS_TOKEN = "DEDUP_STATS"; // to a Dstore, replied DEDUP_STATS blobs files blob_bytes saved_bytes
+	public final static String WIRE_STATS_TOKEN = "WIRE_STATS"; // to a Dstore, replied WIRE_STATS then logical_bytes wire_bytes ms sent deflated, then received
+	public final static String LOAD_DATA_RANGE_TOKEN = "LOAD_DATA_RANGE"; // LOAD_DATA_RANGE filename offset length
+	public final static String LOAD_DATA_RANGE_DEFLATE_TOKEN = "LOAD_DATA_RANGE_DEFLATE"; // LOAD_DATA_RANGE_DEFLATE filename offset length, a LOAD_DATA_RANGE answered in deflated frames
+	public final static String LOAD_REPLICAS_TOKEN = "LOAD_REPLICAS"; // LOAD_REPLICAS filename
 	public final static String RELOAD_TOKEN = "RELOAD";
 	public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
 	
 	// messages sent by the Controller
 	public final static String STORE_TO_TOKEN = "STORE_TO";
+	public final static String STORE_TO_STRIPED_TOKEN = "STORE_TO_STRIPED"; // STORE_TO_STRIPED stripe_size stripe_count then R ports per stripe
 	public final static String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
 	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
+	public final static String LOAD_FROM_REPLICAS_TOKEN = "LOAD_FROM_REPLICAS"; // LOAD_FROM_REPLICAS filesize then every replica port
+	public final static String LOAD_FROM_STRIPED_TOKEN = "LOAD_FROM_STRIPED"; // LOAD_FROM_STRIPED filesize stripe_size stripe_count then one port per stripe
 	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
 	public final static String REBALANCE_TOKEN = "REBALANCE";
+	public final static String CHAIN_TOKEN = "CHAIN"; // CHAIN filename filesize deadline then the ports the head of a chain forwards to, deadline in ms since the epoch
+	public final static String CHAIN_CANCEL_TOKEN = "CHAIN_CANCEL"; // CHAIN_CANCEL filename, answered the same once the chain is dropped
+	public final static String SHARDS_TOKEN = "SHARDS"; // SHARDS filename filesize k m then one port per shard, 0 if lost, before a coded STORE or LOAD_DATA
+	public final static String REPAIR_TOKEN = "REPAIR"; // REPAIR index filename filesize k m then one port per shard, 0 if lost
+	public final static String LINK_TOKEN = "LINK"; // LINK filename filesize digest, stores a file from the blob of a digest the Dstore holds
+	public final static String REQUEST_TOKEN = "REQUEST"; // REQUEST id then a LIST_PAGE, REBALANCE, CHAIN, CHAIN_CANCEL, SHARDS, REPAIR or LINK, answered with REPLY id
 	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
-	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
+	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS"; // also from Dstores, to a STORE of a file already being stored there
 	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
 	public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
 	
 	// messages sent by Dstores
 	public final static String ACK_TOKEN = "ACK";
-	public final static String STORE_ACK_TOKEN = "STORE_ACK";
+	public final static String STORE_ACK_TOKEN = "STORE_ACK"; // STORE_ACK filename [checksum [digest]]
 	public final static String REMOVE_ACK_TOKEN = "REMOVE_ACK";
-	public final static String JOIN_TOKEN = "JOIN";
-	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
+	public final static String JOIN_TOKEN = "JOIN"; // JOIN port [used_bytes free_bytes [advertise_pages]]
+	public final static String ADVERTISE_TOKEN = "ADVERTISE"; // ADVERTISE more then name size checksum per file, follows JOIN port used free pages
+	public final static String SPACE_TOKEN = "SPACE"; // SPACE used_bytes free_bytes, sent periodically after JOIN
+	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE"; // REBALANCE_STORE filename filesize
+	public final static String REBALANCE_STORE_DEFLATE_TOKEN = "REBALANCE_STORE_DEFLATE"; // REBALANCE_STORE_DEFLATE filename filesize, a REBALANCE_STORE offering the content in deflated frames
+	public final static String DEFLATE_FLAG = "deflate"; // "ACK deflate" accepts a STORE_DEFLATE or REBALANCE_STORE_DEFLATE, then the content is sent in deflated frames, a plain ACK takes it as is
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+	public final static String CHAIN_ACK_TOKEN = "CHAIN_ACK"; // CHAIN_ACK filename
+	public final static String SHARDS_ACK_TOKEN = "SHARDS_ACK"; // SHARDS_ACK filename
+	public final static String SHARDS_LOST_TOKEN = "SHARDS_LOST"; // SHARDS_LOST filename then the index of each shard a coded STORE could not send
+	public final static String REPAIR_COMPLETE_TOKEN = "REPAIR_COMPLETE"; // REPAIR_COMPLETE shard
+	public final static String REPAIR_FAILED_TOKEN = "REPAIR_FAILED"; // REPAIR_FAILED shard
+	public final static String LINK_ACK_TOKEN = "LINK_ACK"; // LINK_ACK filename checksum
+	public final static String LINK_FAILED_TOKEN = "LINK_FAILED"; // LINK_FAILED filename
+	public final static String REPLY_TOKEN = "REPLY"; // REPLY id then the reply of the REQUEST id
+	public final static String REQUEST_FAILED_TOKEN = "REQUEST_FAILED"; // replied to a REQUEST the Dstore could not parse or carry out
 }
@@ -0,0 +1,258 @@
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8). A file is cut into rows of k
+ * data blocks, each row gets m parity blocks, and shard i is block i of
+ * every row. Any k of the k + m shards give back the file. Parity rows come
+ * from a Cauchy matrix, so every k rows of the generator are invertible.
+ */
+public class ReedSolomon {
+
+    /**
+     * Separator between an erasure coded file's name and its shard index.
+     */
+    public final static String SHARD_SEPARATOR = "#rs";
+
+    /**
+     * Largest block of one shard per row, bounding the memory of a row.
+     */
+    public final static int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private final static byte[] EXP = new byte[512];
+    private final static int[] LOG = new int[256];
+    private final static byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= 0x11d;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private int k;
+    private int m;
+    private byte[][] generator;
+
+    /**
+     * Constructor.
+     * 
+     * @param k data shards
+     * @param m parity shards
+     */
+    public ReedSolomon(int k, int m) {
+        if (k < 1 || m < 0 || k + m > 256) {
+            throw new IllegalArgumentException("Bad shard counts " + k + "+" + m + ".");
+        }
+        this.k = k;
+        this.m = m;
+        this.generator = new byte[k + m][k];
+        for (int i = 0; i < k; i++) {
+            generator[i][i] = 1;
+        }
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < k; j++) {
+                generator[k + i][j] = inverse((k + i) ^ j);
+            }
+        }
+    }
+
+    /**
+     * Get shard name.
+     * 
+     * @param filename
+     * @param index
+     * @return
+     */
+    public static String shardName(String filename, int index) {
+        return filename + SHARD_SEPARATOR + index;
+    }
+
+    /**
+     * Get block size, the bytes of one shard in the largest row.
+     * 
+     * @param filesize
+     * @param k
+     * @return
+     */
+    public static int blockSize(long filesize, int k) {
+        return Math.max(1, rowBlockSize(filesize, k));
+    }
+
+    /**
+     * Get block size of the row starting with remaining bytes of the file
+     * left. The last row shrinks to fit them, so padding stays under k bytes.
+     * 
+     * @param remaining
+     * @param k
+     * @return
+     */
+    public static int rowBlockSize(long remaining, int k) {
+        return (int) Math.min(MAX_BLOCK_SIZE, (remaining + k - 1) / k);
+    }
+
+    /**
+     * Get shard size, full rows plus the last one.
+     * 
+     * @param filesize
+     * @param k
+     * @return
+     */
+    public static long shardSize(long filesize, int k) {
+        long row = (long) MAX_BLOCK_SIZE * k;
+        return filesize / row * MAX_BLOCK_SIZE + rowBlockSize(filesize % row, k);
+    }
+
+    /**
+     * Get coefficients giving shard target from the shards in sources,
+     * which must be k distinct shards.
+     * 
+     * @param sources
+     * @param target
+     * @return k coefficients, one per source
+     */
+    public byte[] coefficients(int[] sources, int target) {
+        if (sources.length != k) {
+            throw new IllegalArgumentException("Need " + k + " shards, got " + sources.length + ".");
+        }
+        byte[][] matrix = new byte[k][];
+        for (int i = 0; i < k; i++) {
+            matrix[i] = Arrays.copyOf(generator[sources[i]], k);
+        }
+        byte[][] inverted = invert(matrix);
+        byte[] coefficients = new byte[k];
+        for (int j = 0; j < k; j++) {
+            int sum = 0;
+            for (int i = 0; i < k; i++) {
+                sum ^= MUL[generator[target][i] & 0xff][inverted[i][j] & 0xff];
+            }
+            coefficients[j] = (byte) sum;
+        }
+        return coefficients;
+    }
+
+    /**
+     * Combine blocks into out, out = sum of coefficients[i] * inputs[i].
+     * 
+     * @param coefficients
+     * @param inputs
+     * @param out
+     * @param length
+     */
+    public static void combine(byte[] coefficients, byte[][] inputs, byte[] out, int length) {
+        Arrays.fill(out, 0, length, (byte) 0);
+        for (int i = 0; i < coefficients.length; i++) {
+            int c = coefficients[i] & 0xff;
+            byte[] in = inputs[i];
+            if (c == 0) {
+                continue;
+            } else if (c == 1) {
+                for (int b = 0; b < length; b++) {
+                    out[b] ^= in[b];
+                }
+            } else {
+                byte[] table = MUL[c];
+                for (int b = 0; b < length; b++) {
+                    out[b] ^= table[in[b] & 0xff];
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode the parity blocks of a row.
+     * 
+     * @param data k blocks
+     * @param parity m blocks
+     * @param length
+     */
+    public void encode(byte[][] data, byte[][] parity, int length) {
+        for (int i = 0; i < m; i++) {
+            combine(generator[k + i], data, parity[i], length);
+        }
+    }
+
+    /**
+     * Get data shards.
+     * 
+     * @return
+     */
+    public int getDataShards() {
+        return k;
+    }
+
+    /**
+     * Get parity shards.
+     * 
+     * @return
+     */
+    public int getParityShards() {
+        return m;
+    }
+
+    /**
+     * Invert a matrix by Gauss-Jordan elimination.
+     * 
+     * @param matrix
+     * @return
+     */
+    private static byte[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        byte[][] inverted = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            inverted[i][i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && matrix[pivot][col] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("Shards are not independent.");
+            }
+            byte[] swap = matrix[col];
+            matrix[col] = matrix[pivot];
+            matrix[pivot] = swap;
+            swap = inverted[col];
+            inverted[col] = inverted[pivot];
+            inverted[pivot] = swap;
+            byte[] scale = MUL[inverse(matrix[col][col] & 0xff) & 0xff];
+            for (int j = 0; j < n; j++) {
+                matrix[col][j] = scale[matrix[col][j] & 0xff];
+                inverted[col][j] = scale[inverted[col][j] & 0xff];
+            }
+            for (int row = 0; row < n; row++) {
+                int factor = matrix[row][col] & 0xff;
+                if (row == col || factor == 0) {
+                    continue;
+                }
+                byte[] table = MUL[factor];
+                for (int j = 0; j < n; j++) {
+                    matrix[row][j] ^= table[matrix[col][j] & 0xff];
+                    inverted[row][j] ^= table[inverted[col][j] & 0xff];
+                }
+            }
+        }
+        return inverted;
+    }
+
+    /**
+     * Multiplicative inverse in GF(2^8).
+     * 
+     * @param a non zero
+     * @return
+     */
+    private static byte inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+}
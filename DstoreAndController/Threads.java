@@ -0,0 +1,71 @@
+import java.lang.reflect.Method;
+
+/**
+ * Thread factory for per-connection handlers and transfers. Starts platform
+ * threads by default, or virtual threads after useVirtual() on a JVM that
+ * has them.
+ */
+public class Threads {
+
+    private static Object virtualBuilder = null;
+    private static Method startMethod = null;
+
+    /**
+     * Switch to virtual threads. Looked up reflectively so the code still
+     * builds and runs on JVMs without Thread.ofVirtual.
+     * 
+     * @return false if the JVM has no virtual threads and platform threads stay in use
+     */
+    public static synchronized boolean useVirtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method start = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+            start.invoke(builder, (Runnable) () -> { });
+            virtualBuilder = builder;
+            startMethod = start;
+            return true;
+        } catch (Exception e) {
+            System.err.println("Virtual threads unavailable on this JVM, use platform threads.");
+            return false;
+        }
+    }
+
+    /**
+     * Is using virtual threads.
+     * 
+     * @return
+     */
+    public static boolean isVirtual() {
+        return startMethod != null;
+    }
+
+    /**
+     * Start task on a new thread.
+     * 
+     * @param task
+     * @return
+     */
+    public static Thread start(Runnable task) {
+        if (startMethod != null) {
+            try {
+                return (Thread) startMethod.invoke(virtualBuilder, task);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        Thread thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Configure from the --threads=platform|virtual option.
+     * 
+     * @param options
+     */
+    public static void configure(Options options) {
+        if (options.get("threads", "platform").equals("virtual")) {
+            useVirtual();
+        }
+    }
+}